@@ -0,0 +1,150 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mediabin.www.MBAsset;
+
+/**
+ * Cache of how assets are resolved in MediaBin by MediaBinBaseRequest.getAsset(), so that
+ * DCRs holding stale asset ids do not cost three web service calls on every render.
+ *
+ * Holds the root container id, the container id of each container path and the asset found
+ * for each (assetId, assetPath) pair. Lookups that found nothing are also cached, for the
+ * shorter Settings.getAssetCacheNegativeTTL().
+ */
+public class MediaBinAssetCache {
+
+	private static final String ROOT_CONTAINER_KEY = "";
+
+	private static long ttlNanos = Settings.getAssetCacheTTL() * 1000000L;
+
+	private static long negativeTtlNanos = Settings.getAssetCacheNegativeTTL() * 1000000L;
+
+	private static int maxEntries = Settings.getAssetCacheMaxEntries();
+
+	private static ConcurrentHashMap<String, Entry<String>> containers = new ConcurrentHashMap<String, Entry<String>>();
+
+	private static ConcurrentHashMap<String, Entry<MBAsset>> assets = new ConcurrentHashMap<String, Entry<MBAsset>>();
+
+	/**
+	 * @return the cached root container entry, or null if it is not cached
+	 */
+	public static Entry<String> getRootContainerId() {
+		return get(containers, ROOT_CONTAINER_KEY);
+	}
+
+	public static void putRootContainerId(String containerId) {
+		put(containers, ROOT_CONTAINER_KEY, containerId);
+	}
+
+	/**
+	 * @param containerPath	the backslash separated container path
+	 * @return the cached container entry, or null if it is not cached
+	 */
+	public static Entry<String> getContainerId(String containerPath) {
+		return get(containers, containerPath);
+	}
+
+	/**
+	 * @param containerPath	the backslash separated container path
+	 * @param containerId	the container id, or null if there is no container for the path
+	 */
+	public static void putContainerId(String containerPath, String containerId) {
+		put(containers, containerPath, containerId);
+	}
+
+	/**
+	 * @param assetId	the asset id, may be null
+	 * @param assetPath	the asset path, may be null
+	 * @return the cached asset entry, or null if it is not cached
+	 */
+	public static Entry<MBAsset> getAsset(String assetId, String assetPath) {
+		return get(assets, assetKey(assetId, assetPath));
+	}
+
+	/**
+	 * @param assetId	the asset id, may be null
+	 * @param assetPath	the asset path, may be null
+	 * @param asset		the asset, or null if no usable asset was found
+	 */
+	public static void putAsset(String assetId, String assetPath, MBAsset asset) {
+		put(assets, assetKey(assetId, assetPath), asset);
+	}
+
+	/**
+	 * Removes everything from the cache
+	 */
+	public static void invalidateAll() {
+		containers.clear();
+		assets.clear();
+	}
+
+	private static String assetKey(String assetId, String assetPath) {
+		return ((assetId == null) ? "" : assetId) + "|" + ((assetPath == null) ? "" : assetPath);
+	}
+
+	private static <V> Entry<V> get(ConcurrentHashMap<String, Entry<V>> cache, String key) {
+		Entry<V> entry = cache.get(key);
+		if (entry != null && entry.expiresAt - System.nanoTime() < 0) {
+			cache.remove(key, entry);
+			return null;
+		}
+		return entry;
+	}
+
+	private static <V> void put(ConcurrentHashMap<String, Entry<V>> cache, String key, V value) {
+		long now = System.nanoTime();
+		cache.put(key, new Entry<V>(value, now + ((value == null) ? negativeTtlNanos : ttlNanos)));
+
+		if (cache.size() > maxEntries) {
+			// drop the expired entries, and if that is not enough drop entries until a quarter of the cache is free
+			for (Iterator<Map.Entry<String, Entry<V>>> iter = cache.entrySet().iterator(); iter.hasNext(); ) {
+				if (iter.next().getValue().expiresAt - now < 0) {
+					iter.remove();
+				}
+			}
+			if (cache.size() > maxEntries) {
+				int lowWater = maxEntries - maxEntries / 4;
+				// lookups that found nothing are the cheapest to lose
+				evict(cache, lowWater, true);
+				if (cache.size() > lowWater) {
+					evict(cache, lowWater, false);
+				}
+			}
+		}
+	}
+
+	private static <V> void evict(ConcurrentHashMap<String, Entry<V>> cache, int lowWater, boolean negativeOnly) {
+		for (Iterator<Map.Entry<String, Entry<V>>> iter = cache.entrySet().iterator(); iter.hasNext() && cache.size() > lowWater; ) {
+			Entry<V> entry = iter.next().getValue();
+			if (!negativeOnly || entry.value == null) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * A cached lookup, the value is null when the lookup found nothing
+	 */
+	public static class Entry<V> {
+
+		private final V value;
+		private final long expiresAt;
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * @return the cached value, or null if the lookup found nothing
+		 */
+		public V getValue() {
+			return value;
+		}
+
+	}
+
+}
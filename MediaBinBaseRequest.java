@@ -10,8 +10,6 @@ import org.apache.commons.logging.LogFactory;
 
 import com.mediabin.www.MBAsset;
 import com.mediabin.www.MBContainer;
-import com.mediabin.www.MediaBinServer;
-import com.mediabin.www.MediaBinServerLocator;
 import com.mediabin.www.MediaBinServerSoap;
 
 /**
@@ -25,28 +23,87 @@ public class MediaBinBaseRequest {
 	protected MediaBinServerSoap server = null;
 
 	/**
+	 * Set when a call on the connection failed, so that it is thrown away rather than given back
+	 */
+	private boolean connectionFailed = false;
+
+	/**
+	 * No connection is borrowed until the request needs one, so a request waiting in the work
+	 * queue does not hold a connection
 	 * 
 	 * @throws MediaBinRequestException when we cannot connect to the MediaBin server
 	 * 
 	 */
 	public MediaBinBaseRequest() throws MediaBinRequestException
 	{
+	}
+
+	/**
+	 * Borrows a connection from the MediaBinConnectionManager, unless the request already has one. 
+	 * It should be given back with releaseConnection() once the request has finished
+	 * 
+	 * @return the connection
+	 * @throws MediaBinRequestException when we cannot connect to the MediaBin server
+	 */
+	public synchronized MediaBinServerSoap connect() throws MediaBinRequestException {
+		if (server == null) {
+			try {
+				server = MediaBinConnectionManager.borrow();
+			} catch (Exception e) {
+				throw new MediaBinRequestException("Unable to connect to MediaBin", e);
+			}
+		}
+		return server;
+	}
+
+	/**
+	 * @return the connection, borrowed when first needed
+	 * @throws RemoteException when we cannot connect to the MediaBin server
+	 */
+	private MediaBinServerSoap getServer() throws RemoteException {
 		try {
-			this.server = ConnectToMediaBin(
-						Settings.getMediaBinURL(), 
-						Settings.getMediaBinLoginDomain(),
-						Settings.getMediaBinLoginUsername(),
-						Settings.getMediaBinLoginPassword(),
-						Settings.getHttpTimeout()
-			);
-		} catch (Exception e) {
-			throw new MediaBinRequestException("Unable to connect to MediaBin", e);
+			return connect();
+		} catch (MediaBinRequestException e) {
+			throw new RemoteException(e.getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Gives the connection back to the MediaBinConnectionManager, if one was borrowed. A connection 
+	 * that a call has failed on is thrown away instead
+	 */
+	public synchronized void releaseConnection() {
+		if (connectionFailed) {
+			invalidateConnection();
+			return;
+		}
+		MediaBinConnectionManager.release(server);
+		server = null;
+	}
+
+	/**
+	 * Throws the connection away after it has failed, the next call borrows another one
+	 */
+	public synchronized void invalidateConnection() {
+		MediaBinConnectionManager.invalidate(server);
+		server = null;
+		connectionFailed = false;
+	}
+
+	/**
+	 * Records that a call on the connection failed, it is thrown away when the request releases it. The connection
+	 * is kept until then, as subclasses use the server field directly
+	 */
+	protected synchronized void connectionFailed() {
+		if (server != null) {
+			connectionFailed = true;
 		}
 	}
 
 	/**
 	 * Returns a MediaBin asset object for the passed assetId, falling back to the assetPath if 
-	 * the assetId is invalid or the asset it represents has been deleted
+	 * the assetId is invalid or the asset it represents has been deleted. The result is taken
+	 * from the MediaBinAssetCache when available
 	 *  
 	 * @param assetId		the id of the asset to retrieve
 	 * @param assetPath		optional, if the assetId doesn't work fall back to this value 
@@ -55,12 +112,45 @@ public class MediaBinBaseRequest {
 	 * @throws MediaBinRequestException when the asset cannot be found
 	 */
 	public MBAsset getAsset(String assetId, String assetPath) throws RemoteException, MediaBinRequestAssetNotFoundException {
+		return getAsset(assetId, assetPath, true);
+	}
+	
+	/**
+	 * Returns a MediaBin asset object for the passed assetId, falling back to the assetPath if 
+	 * the assetId is invalid or the asset it represents has been deleted
+	 *  
+	 * @param assetId		the id of the asset to retrieve
+	 * @param assetPath		optional, if the assetId doesn't work fall back to this value 
+	 * @param useCache		false to always fetch the asset from MediaBin, e.g. when its modified time is needed
+	 * @return the asset object from MediaBin
+	 * @throws RemoteException
+	 * @throws MediaBinRequestException when the asset cannot be found
+	 */
+	public MBAsset getAsset(String assetId, String assetPath, boolean useCache) throws RemoteException, MediaBinRequestAssetNotFoundException {
+		
+		if (useCache) {
+			MediaBinAssetCache.Entry<MBAsset> cached = MediaBinAssetCache.getAsset(assetId, assetPath);
+			if (cached != null) {
+				if (cached.getValue() == null) {
+					throw new MediaBinRequestAssetNotFoundException("Asset not found for assetId '" + assetId + "', assetPath : " + assetPath + " (cached)");
+				}
+				return cached.getValue();
+			}
+		}
+		
 		MBAsset asset = null;
+		boolean lookupFailed = false;
 		
 		if (assetId != null) {
 			// if we have been supplied an assetId, check to see if we can find it
 			try {
-				asset = server.getAsset(assetId);
+				long start = System.nanoTime();
+				try {
+					asset = getServer().getAsset(assetId);
+				}
+				finally {
+					MediaBinMetrics.time(MediaBinMetrics.SOAP_GET_ASSET, start);
+				}
 				if (asset != null && asset.isIsDeleted()) {
 					// if this asset has been deleted, then it is no use to us, so fallback to the assetPath
 					asset = null;
@@ -69,7 +159,13 @@ public class MediaBinBaseRequest {
 			}
 			catch (Exception e) {
 				// catch any exceptions, so that we can try the assetPath below
-				mLogger.debug("Unable to get asset : " + assetId);
+				if (e instanceof RemoteException) {
+					connectionFailed();
+				}
+				if (mLogger.isDebugEnabled()) {
+					mLogger.debug("Unable to get asset : " + assetId);
+				}
+				lookupFailed = true;
 			}
 		}
 		
@@ -77,18 +173,30 @@ public class MediaBinBaseRequest {
 			// we either don't have an assetId, or it is invalid so try the assetPath 
 			mLogger.info("Asset not found for assetId '" + assetId + "', trying assetPath : " + assetPath);
 
-			MBContainer rootContainer = server.getRootContainer();
-			String rootContainerId = rootContainer.getMID();
-			
 			int lastSlashPos = assetPath.lastIndexOf("/");
 			if (lastSlashPos > 0) {
 				String containerPath = assetPath.substring(0, lastSlashPos);
 				containerPath = containerPath.replace("/".charAt(0), "\\".charAt(0));
-				MBContainer container = server.getContainerByPath(containerPath, rootContainerId, false); // * -> null :(
-				if (container == null) 	throw new MediaBinRequestAssetNotFoundException("Parent container not found for asset path");
+				String containerId = getContainerId(containerPath);
+				if (containerId == null) {
+					if (!lookupFailed) {
+						MediaBinAssetCache.putAsset(assetId, assetPath, null);
+					}
+					throw new MediaBinRequestAssetNotFoundException("Parent container not found for asset path");
+				}
 	
 				String assetName = assetPath.substring(lastSlashPos + 1);
-				asset = server.getAssetByName(assetName, container.getMID());
+				long start = System.nanoTime();
+				try {
+					asset = getServer().getAssetByName(assetName, containerId);
+				}
+				catch (RemoteException e) {
+					connectionFailed();
+					throw e;
+				}
+				finally {
+					MediaBinMetrics.time(MediaBinMetrics.SOAP_GET_ASSET, start);
+				}
 				if (asset != null && asset.isIsDeleted()) {
 					// if this asset has been deleted, then it is no use to us
 					asset = null;
@@ -97,6 +205,11 @@ public class MediaBinBaseRequest {
 			}
 		}
 
+		if (asset != null || !lookupFailed) {
+			// an error from MediaBin does not mean the asset does not exist, so that is not cached
+			MediaBinAssetCache.putAsset(assetId, assetPath, asset);
+		}
+
 		if (asset == null) {
 			// still no asset? then get out of here...
 			throw new MediaBinRequestAssetNotFoundException("Asset not found for assetId '" + assetId + "', assetPath : " + assetPath);
@@ -106,42 +219,47 @@ public class MediaBinBaseRequest {
 		
 	}
 	
-	//A MediaBinServerSoap object only has to be created once
-	private static MediaBinServerSoap ConnectToMediaBin( String strURL, String strDomain, String strUsername, String strPassword, int intHttpTimeout ) throws Exception
-	{
-		//This creates the service
-		MediaBinServer myService = new MediaBinServerLocator();
-		//Two ways to get the Java stub to the service...
-		MediaBinServerSoap myServiceStub;
+	/**
+	 * Returns the id of the container at the passed path, using the MediaBinAssetCache for the 
+	 * root container and container ids
+	 * 
+	 * @param containerPath		the backslash separated path of the container from the root container
+	 * @return the container id, or null if there is no container at the path
+	 * @throws RemoteException
+	 */
+	private String getContainerId(String containerPath) throws RemoteException {
 		
-		if( strURL.equals("") )
-		{
-			//...using the URL specified in the WSDL
-			myServiceStub = myService.getMediaBinServerSoap();
+		MediaBinAssetCache.Entry<String> cached = MediaBinAssetCache.getContainerId(containerPath);
+		if (cached != null) {
+			return cached.getValue();
 		}
-		else
-		{
-			//...or we can specify the URL of the web service
-			java.net.URL serviceURL = new java.net.URL( strURL );
-			myServiceStub = myService.getMediaBinServerSoap( serviceURL );
-		}
-
-		//We need to specify the username\password thru the Stub and
-		//use basic authentication since we can't use Windows Integrated
-//		org.apache.axis.client.Stub t = (org.apache.axis.client.Stub) myServiceStub;
-		String strUser = "";
-
-		if( strDomain.equals("") )
-			strUser = strUsername;
-		else
-			strUser = strDomain + "\\" + strUsername;
 		
-		((org.apache.axis.client.Stub) myServiceStub).setUsername( strUser );
-		((org.apache.axis.client.Stub) myServiceStub).setPassword( strPassword );		
-		((org.apache.axis.client.Stub) myServiceStub).setTimeout( intHttpTimeout );		
-
-		//Now we can make calls into the web service using the Java stub		
-		return myServiceStub;
+		long start = System.nanoTime();
+		String rootContainerId;
+		MBContainer container;
+		try {
+			cached = MediaBinAssetCache.getRootContainerId();
+			if (cached != null) {
+				rootContainerId = cached.getValue();
+			}
+			else {
+				MBContainer rootContainer = getServer().getRootContainer();
+				rootContainerId = rootContainer.getMID();
+				MediaBinAssetCache.putRootContainerId(rootContainerId);
+			}
+			
+			container = getServer().getContainerByPath(containerPath, rootContainerId, false); // * -> null :(
+		}
+		catch (RemoteException e) {
+			connectionFailed();
+			throw e;
+		}
+		finally {
+			MediaBinMetrics.time(MediaBinMetrics.SOAP_GET_CONTAINER, start);
+		}
+		String containerId = (container == null) ? null : container.getMID();
+		MediaBinAssetCache.putContainerId(containerPath, containerId);
+		return containerId;
 	}
 
 }
@@ -6,16 +6,25 @@ package com.eu.interflow.livesite.mediabin;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.rmi.RemoteException;
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
@@ -25,14 +34,17 @@ import org.dom4j.DocumentException;
 import org.dom4j.Element;
 
 import com.eu.interflow.livesite.externals.ILocale;
-import com.eu.interflow.livesite.mediabin.requests.MediaBinRunnableRequest;
+import com.eu.interflow.livesite.mediabin.MediaBinFreshnessChecker.FreshnessCheck;
+import com.eu.interflow.livesite.mediabin.MediaBinImportRegistry.PendingImport;
+import com.eu.interflow.livesite.mediabin.MediaBinTransformationIndex.AssetRule;
+import com.eu.interflow.livesite.mediabin.MediaBinTransformationIndex.TransformationRule;
+import com.eu.interflow.livesite.mediabin.MediaBinWorkQueue.Priority;
 import com.eu.interflow.livesite.mediabin.requests.MediaBinStreamingTransformationRequest;
 import com.eu.interflow.livesite.mediabin.requests.MediaBinTransformationRequest;
-import com.eu.interflow.livesite.mediabin.requests.MediaBinUpToDateRequest;
 import com.eu.interflow.livesite.utils.LSDCRReader;
+import com.interwoven.livesite.file.FileDal;
 import com.interwoven.livesite.runtime.RequestContext;
 import com.interwoven.livesite.spring.ApplicationContextUtils;
-import com.mediabin.www.MBAsset;
 
 /**
  * @author gjones
@@ -48,6 +60,11 @@ public class MediaBinClient {
 	 */
 	private static final String PLACEHOLDER_FILE_PREFIX = ".placeholder.";
 	
+	/**
+	 * Filename prefix used for temporary files that are written and then renamed into place
+	 */
+	private static final String TEMP_FILE_PREFIX = ".tmp.";
+	
 	/**
 	 * Filename used when there is no asset path and a (None) transformation is being used
 	 */
@@ -60,41 +77,247 @@ public class MediaBinClient {
 	
 	private static Log mLogger = LogFactory.getLog(MediaBinClient.class);
 	
-	private static ExecutorService pool = Executors.newFixedThreadPool(Settings.getMaxConnections());
-	
 	private static LSDCRReader reader = new LSDCRReader();
 	
+	private static volatile TransformationsReader transformationsReader = new LiveSiteTransformationsReader();
+	
+	/**
+	 * Used in place of the path config bean when set, by the benchmarks and load driver that run without LiveSite
+	 */
+	private static volatile MediaBinClientPathConfig pathConfigOverride = null;
+	
 	private static Object mbTransformationsLock = new Object();
-	private static Document mbTransformations = null;
-	private static long    mbTransformationsLastRefresh = 0;
+	private static volatile TransformationsSnapshot mbTransformations = null;
+	private static AtomicBoolean mbTransformationsRefreshing = new AtomicBoolean(false);
+	private static volatile boolean mbTransformationsInvalidated = false;
+	private static volatile long    mbTransformationsLastCheck = 0;
+	private static volatile long    mbTransformationsFailedAt = 0;
 	
 	private static int updateCheckInterval = Settings.getUpdateCheckInterval();
 	private static int transformationRefreshInterval = Settings.getTransformationsRefreshInterval();
+	private static boolean transformationChangeDetection = Settings.isTransformationsChangeDetection();
+	private static int transformationCheckInterval = Settings.getTransformationsCheckInterval();
+	
+	private static int renderParallelThreshold = Settings.getRenderParallelThreshold();
+	
+	/**
+	 * Runs the import decisions of large source DCRs in parallel, or null if that is switched off. When it is busy
+	 * the decisions are run on the render thread instead of waiting for it
+	 */
+	private static ExecutorService renderExecutor = createRenderExecutor(Settings.getRenderThreads());
+	
+	static {
+		// before the first render, so that it finds the refresh cache and import index as they were before the restart
+		MediaBinWarmup.start();
+		MediaBinMetrics.registerMBean();
+	}
+	
+	
+	
+	/**
+	 * Reads the transformations DCR
+	 */
+	interface TransformationsReader {
+		
+		/**
+		 * @param context	the request context the DCR is read for
+		 * @return the DCR
+		 * @throws DocumentException when the DCR cannot be read
+		 */
+		Document read(RequestContext context) throws DocumentException;
+		
+	}
 	
+	private static class LiveSiteTransformationsReader implements TransformationsReader {
+		
+		public Document read(RequestContext context) throws DocumentException {
+			return reader.readDCR(context, Settings.getTransformationsDCRPath());
+		}
+		
+	}
 	
+	/**
+	 * Replaces how the transformations DCR is read, it is read again on the next render. For the benchmarks and load 
+	 * driver, which run without LiveSite
+	 * 
+	 * @param transformationsReader	the reader, or null to go back to reading the DCR through LiveSite
+	 */
+	static void setTransformationsReader(TransformationsReader transformationsReader) {
+		MediaBinClient.transformationsReader = (transformationsReader == null) ? new LiveSiteTransformationsReader() : transformationsReader;
+		invalidateTransformations();
+	}
 	
 	/**
-	 * Get the MediaBin transformations DCR, this DCR is cached and refreshed once every Settings.getTransformationsRefreshInterval()
+	 * Replaces the path config bean, for the benchmarks and load driver, which run without a Spring application context
+	 * 
+	 * @param pathConfig	the path config, or null to go back to the bean
+	 */
+	static void setPathConfig(MediaBinClientPathConfig pathConfig) {
+		pathConfigOverride = pathConfig;
+	}
+	
+	private static ExecutorService createRenderExecutor(int threads) {
+		if (threads <= 1) {
+			return null;
+		}
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(threads * 64),
+				new MediaBinWorkQueue.NamedThreadFactory("MediaBin-render"),
+				new ThreadPoolExecutor.CallerRunsPolicy()
+			);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	/**
+	 * Stops the threads the import decisions are run on, for when the web application is stopped
+	 */
+	public static void shutdown() {
+		if (renderExecutor != null) {
+			renderExecutor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Get the compiled MediaBin transformations DCR, this DCR is cached and refreshed once every Settings.getTransformationsRefreshInterval(). 
+	 * With Settings.isTransformationsChangeDetection() the modification time of the DCR is checked every 
+	 * Settings.getTransformationsCheckInterval() instead, and the DCR is only read again when it has changed
 	 * @param context
 	 * @return
 	 * @throws DocumentException
 	 */
-	private static Document getTransformations(RequestContext context) throws DocumentException {
+	static MediaBinTransformationIndex getTransformations(RequestContext context) throws DocumentException {
 		mLogger.debug("Getting Transformations DCR");
-		if (mbTransformations == null || (mbTransformationsLastRefresh + transformationRefreshInterval < Calendar.getInstance().getTimeInMillis())) {
+		TransformationsSnapshot snapshot = mbTransformations;
+		if (snapshot == null) {
+			// there is nothing to use until the DCR has been read once, so wait for whoever is reading it
 			synchronized (mbTransformationsLock) {
-				mLogger.info("Reading Transformations DCR");
-				mbTransformations = reader.readDCR(context, Settings.getTransformationsDCRPath());
-				mbTransformationsLastRefresh = Calendar.getInstance().getTimeInMillis();
+				snapshot = mbTransformations;
+				if (snapshot == null) {
+					snapshot = loadTransformations(context);
+					mbTransformations = snapshot;
+				}
+			}
+		}
+		else if (isTransformationsRefreshDue(snapshot) && mbTransformationsRefreshing.compareAndSet(false, true)) {
+			// only this thread reads the DCR again, the others carry on with the current snapshot until it is replaced
+			try {
+				snapshot = refreshTransformations(context, snapshot);
+			} finally {
+				mbTransformationsRefreshing.set(false);
 			}
 		}
-		return mbTransformations;
+		return snapshot.index;
+	}
+	
+	/**
+	 * Has the transformations DCR read again on the next render, whether or not it has changed
+	 */
+	public static void invalidateTransformations() {
+		mLogger.info("Transformations DCR invalidated");
+		mbTransformationsInvalidated = true;
+	}
+	
+	private static boolean isTransformationsRefreshDue(TransformationsSnapshot snapshot) {
+		long now = System.currentTimeMillis();
+		if (mbTransformationsInvalidated) {
+			return true;
+		}
+		if (transformationChangeDetection) {
+			return mbTransformationsLastCheck + transformationCheckInterval < now;
+		}
+		return snapshot.loadedAt + transformationRefreshInterval < now;
+	}
+	
+	/**
+	 * @return the snapshot to use, which is the passed one if the DCR has not changed or could not be read
+	 */
+	private static TransformationsSnapshot refreshTransformations(RequestContext context, TransformationsSnapshot snapshot) {
+		long now = System.currentTimeMillis();
+		boolean invalidated = mbTransformationsInvalidated;
+		mbTransformationsInvalidated = false;
+		
+		if (!invalidated && transformationChangeDetection) {
+			mbTransformationsLastCheck = now;
+			if (mbTransformationsFailedAt + transformationRefreshInterval >= now) {
+				// the last read failed, and the DCR still looks changed, so wait out the refresh interval before reading it again
+				return snapshot;
+			}
+			long version = getTransformationsVersion(context);
+			if (version == snapshot.version && (version != 0 || snapshot.loadedAt + transformationRefreshInterval >= now)) {
+				// unchanged, or the modification time is not available and it is not yet time to read it anyway
+				return snapshot;
+			}
+		}
+		
+		try {
+			TransformationsSnapshot loaded = loadTransformations(context);
+			mbTransformations = loaded;
+			mbTransformationsFailedAt = 0;
+			return loaded;
+		} catch (Exception e) {
+			// keep the current snapshot, and don't try again until the next refresh interval, in either mode
+			mLogger.error("Error reading Transformations DCR, using the previous version : " + e.getMessage(), e);
+			mbTransformationsFailedAt = now;
+			mbTransformations = new TransformationsSnapshot(snapshot.index, now, snapshot.version);
+			return snapshot;
+		}
+	}
+	
+	private static TransformationsSnapshot loadTransformations(RequestContext context) throws DocumentException {
+		mLogger.info("Reading Transformations DCR");
+		// the version is taken before reading, so a change made while the DCR is read is picked up by the next check
+		long version = getTransformationsVersion(context);
+		return new TransformationsSnapshot(
+				MediaBinTransformationIndex.compile(transformationsReader.read(context)), 
+				System.currentTimeMillis(),
+				version
+			);
+	}
+	
+	/**
+	 * @return the modification time of the transformations DCR, or 0 if it is not known
+	 */
+	@SuppressWarnings("deprecation")
+	private static long getTransformationsVersion(RequestContext context) {
+		if (!transformationChangeDetection) {
+			return 0;
+		}
+		try {
+			FileDal fd = context.getFileDal();
+			return new File(fd.getRoot() + fd.getSeparator() + Settings.getTransformationsDCRPath()).lastModified();
+		} catch (RuntimeException e) {
+			mLogger.warn("Unable to check the modification time of the Transformations DCR : " + e.getMessage());
+			return 0;
+		}
+	}
+	
+	/**
+	 * A compiled transformations DCR, which is replaced as a whole when the DCR is read again
+	 */
+	private static class TransformationsSnapshot {
+		
+		final MediaBinTransformationIndex index;
+		final long loadedAt;
+		
+		/**
+		 * The modification time of the DCR that was read, or 0 if it is not known
+		 */
+		final long version;
+		
+		TransformationsSnapshot(MediaBinTransformationIndex index, long loadedAt, long version) {
+			this.index = index;
+			this.loadedAt = loadedAt;
+			this.version = version;
+		}
+		
 	}
 	
 	
 	/**
 	 * For a given asset perform all the transformations required by the passed content type, xpath and transformation context combination
-	 * Actual requests are delegated off to a ExecutorService, so the transformed files may not exists immediately
+	 * Actual requests are delegated off to the MediaBinWorkQueue, so the transformed files may not exists immediately
 	 * 
 	 * @param assetPath					The path in MediaBin of an asset taken from a DCR.
 	 * @param assetId 					The MediaBin ID of an asset taken from a DCR, e.g. {317136BD-9F9F-4A56-8250-3615646EB735}.
@@ -109,71 +332,107 @@ public class MediaBinClient {
 	 * 				<li>Values of the HashMap is the workspace-relative path to the imported asset for that transformation</li>
 	 * 			</ul>
 	 */
-	@SuppressWarnings("unchecked")
 	public static HashMap importAsset(String assetPath, String assetId, String contentType, String xpath, String transformationContext, RequestContext context)
+	{
+		return importAsset(assetPath, assetId, contentType, xpath, transformationContext, context, null);
+	}
+	
+	/**
+	 * Asynchronous version of importAsset(), returning a future per transformation that completes once the 
+	 * imported file exists, so that callers needing the file itself can wait for just the files they need
+	 * 
+	 * @param assetPath					The path in MediaBin of an asset taken from a DCR.
+	 * @param assetId 					The MediaBin ID of an asset taken from a DCR, e.g. {317136BD-9F9F-4A56-8250-3615646EB735}.
+	 * @param contentType				The DCR content type, e.g. content/product-details
+	 * @param xpath						An XPath expression of the location of the MediaBin asset within the DCR, e.g. /main/ProductImage.
+	 * @param transformationContext		Name the context in which the imported asset is used, e.g. PDF, ProductComponent, etc.
+	 * @param context					the request context
+	 * 
+	 * @return the futures keyed by the "TransformedName" attribute in transformations DCR, getFileURL() of each is the 
+	 *         workspace-relative path that importAsset() returns. Null if there was a problem
+	 */
+	public static Map<String, MediaBinImportFuture> importAssetAsync(String assetPath, String assetId, String contentType, String xpath, String transformationContext, RequestContext context)
+	{
+		Map<String, MediaBinImportFuture> futures = new LinkedHashMap<String, MediaBinImportFuture>();
+		if (importAsset(assetPath, assetId, contentType, xpath, transformationContext, context, futures) == null) {
+			return null;
+		}
+		return futures;
+	}
+	
+	/**
+	 * @param futures	the map to add a future for each transformation to, may be null
+	 */
+	@SuppressWarnings("unchecked")
+	private static HashMap importAsset(String assetPath, String assetId, String contentType, String xpath, String transformationContext, RequestContext context, 
+				Map<String, MediaBinImportFuture> futures)
 	{
 		
+		long start = System.nanoTime();
+		MediaBinImportTrace trace = MediaBinImportTrace.start("importAsset", contentType, transformationContext);
+		boolean success = false;
 		MediaBinClientPathConfig pathConfig = getPathConfig(context);
 		
-		mLogger.debug("Entering importAsset(assetPath: " + assetPath + ", contentType: " + contentType + ", xpath: " + xpath + ", transformationContext: " + transformationContext + ")");
+		if (mLogger.isDebugEnabled()) {
+			mLogger.debug("Entering importAsset(assetPath: " + assetPath + ", contentType: " + contentType + ", xpath: " + xpath + ", transformationContext: " + transformationContext + ")");
+		}
 		
 		try {
 			
 			HashMap transformedFilenames = new HashMap();
 			
-			Document mbTransformations = getTransformations(context);
-			//String searchXPath = "//Transformation[@ContentType='" + contentType + "' and @XPath='" + xpath + "' and @TransformationContext='" + transformationContext + "']";
-			String searchXPath = "//Source[@ContentType='" + contentType + "' and @TransformationContext='" + transformationContext + "']/Asset[@XPath='" + xpath + "']/Transformation";
-			List settings = mbTransformations.selectNodes(searchXPath);
+			AssetRule asset = getTransformations(context).getAsset(contentType, transformationContext, xpath);
 		
-			if (settings.size() == 0) {
+			if (asset == null || asset.getTransformations().size() == 0) {
 				mLogger.info("No transformation found for ContentType(" + contentType + ") XPath(" + xpath + ") TransformationContext(" + transformationContext + ")");
 				return null; 
 			}
 			
-			// Some xPath's cannot be used as a folder name, for these a FileSystemFriendlyPath is provided 
-			String fileSystemFriendlyPath = ((Element) settings.get(0)).getParent().attributeValue("FileSystemFriendlyPath");
-			fileSystemFriendlyPath = (fileSystemFriendlyPath == null) ? xpath.replace('/', '_') : fileSystemFriendlyPath.replace('/', '_');
-			
-			for(Iterator transformationsIter = settings.listIterator(); transformationsIter.hasNext(); ) {
+			for(Iterator<TransformationRule> transformationsIter = asset.getTransformations().iterator(); transformationsIter.hasNext(); ) {
 
-				Element transform = (Element) transformationsIter.next();
-				String transformedName = transform.attributeValue("TransformedName");
-				String taskName = transform.attributeValue("TaskName");
-				
-				mLogger.debug("Found Transformation: " + transformedName + " >> "+ taskName);				
-				
-				List params = transform.elements("RuntimeParameter");		
-				HashMap txParams = new HashMap();
-				StringBuffer nameParams = new StringBuffer();
+				TransformationRule transform = transformationsIter.next();
+				String transformedName = transform.getTransformedName();
+				String taskName = transform.getTaskName();
 				
-				for (Iterator itr = params.iterator(); itr.hasNext(); )
-				{
-					Element param = (Element) itr.next();
-					String name = param.attributeValue("ParameterName");
-					String value = param.attributeValue("ParameterValue");
-					mLogger.debug(" >> MediaBin Parameter: " + name + ": " + value);
-					txParams.put(name, MediaBinRequestUtils.createParameter(name, value));
-					nameParams.append("_").append(value);
+				if (mLogger.isDebugEnabled()) {
+					mLogger.debug("Found Transformation: " + transformedName + " >> "+ taskName);
 				}
 				
 				RequestImportAssetResult result = requestImportAsset(
-					assetId, assetPath, contentType, fileSystemFriendlyPath, 
-					taskName, nameParams.toString(), txParams, transform.attributeValue("ResultExt"), 
-					context, pathConfig
+					assetId, assetPath, contentType, asset.getFileSystemFriendlyPath(), 
+					taskName, transform.getNameParams(), transform.getParameters(), transform.getResultExt(), 
+					context, pathConfig, futures == null
 				);
+				if (trace != null) {
+					trace.rule(1);
+				}
 	
 				// something went wrong, skip this entry
-				if (result == null) continue;
+				if (result == null) {
+					if (trace != null) trace.failed();
+					continue;
+				}
+				if (trace != null) {
+					trace.result(!result.transformRequested);
+				}
 
 				transformedFilenames.put(transformedName, result.filePath);
+				if (futures != null) {
+					futures.put(transformedName, result.toFuture());
+				}
 
 			}
 
+			success = true;
 			return transformedFilenames;
 			
 		} catch (Exception e) {
 			mLogger.error("Error retrieving file : " + e.getMessage(), e);
+		} finally {
+			MediaBinMetrics.time(MediaBinMetrics.RENDER_IMPORT_ASSET, start);
+			if (trace != null) {
+				trace.finish(success);
+			}
 		}
 		
 		return null;
@@ -182,7 +441,7 @@ public class MediaBinClient {
 	
 	/**
 	 * For a given content-type and transformation context, imports all the transformed assets from the passed source DCR document/element
-	 * Actual requests are delegated off to a ExecutorService, so the transformed files may not exists immediately
+	 * Actual requests are delegated off to the MediaBinWorkQueue, so the transformed files may not exists immediately
 	 * 
 	 * The sourceDCR with be updated with all the required transformations within the xpath element, for example:<br />
 	 * Original DCR Entry:<pre>
@@ -207,37 +466,74 @@ public class MediaBinClient {
 	 *  
 	 * @return true on success, false on any error (the sourceDCR might have been part updated)
 	 */
-	@SuppressWarnings("unchecked")
 	public static boolean importSourceAssets(String contentType, String transformationContext, Element sourceDCRRoot, RequestContext context, ILocale locale)
+	{
+		return importSourceAssets(contentType, transformationContext, sourceDCRRoot, context, locale, null);
+	}
+	
+	/**
+	 * Asynchronous version of importSourceAssets(), the sourceDCR is updated in the same way before this returns and the 
+	 * returned future completes once all the imported files exist
+	 * 
+	 * @param contentType				The DCR content type, e.g. content/product-details
+	 * @param transformationContext		Name the context in which the imported asset is used, e.g. PDF, ProductComponent, etc.
+	 * @param sourceDCRRoot				The root element of the sourceDCR that will be searched for the xpaths found in the TransformationsDCR
+	 * @param context					the request context
+	 * @param locale					the locale object currently is use, used to replace language/culture keywords in the xpaths (for generic multi-lingual xpaths) 
+	 * 
+	 * @return a future of the imported files, in the order their elements were added to the sourceDCR, or null on any error 
+	 *         (the sourceDCR might have been part updated)
+	 */
+	public static Future<List<File>> importSourceAssetsAsync(String contentType, String transformationContext, Element sourceDCRRoot, RequestContext context, ILocale locale)
+	{
+		List<MediaBinImportFuture> futures = new ArrayList<MediaBinImportFuture>();
+		if (!importSourceAssets(contentType, transformationContext, sourceDCRRoot, context, locale, futures)) {
+			return null;
+		}
+		return MediaBinImportFuture.allOf(futures);
+	}
+	
+	/**
+	 * @param futures	the list to add a future for each transformed element to, may be null
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean importSourceAssets(String contentType, String transformationContext, Element sourceDCRRoot, RequestContext context, ILocale locale, 
+				List<MediaBinImportFuture> futures)
 	{
 
+		long start = System.nanoTime();
+		MediaBinImportTrace trace = MediaBinImportTrace.start("importSourceAssets", contentType, transformationContext);
+		boolean success = false;
 		MediaBinClientPathConfig pathConfig = getPathConfig(context);
 
-		mLogger.debug("Entering importSourceAssets(contentType: " + contentType + ", transformationContext: " + transformationContext + ")");
+		if (mLogger.isDebugEnabled()) {
+			mLogger.debug("Entering importSourceAssets(contentType: " + contentType + ", transformationContext: " + transformationContext + ")");
+		}
 		
 		try {
 			
-			Document mbTransformations = getTransformations(context);
-			
-			String searchXPath = "//Source[@ContentType='" + contentType + "' and @TransformationContext='" + transformationContext + "']/Asset";
-			List assets = mbTransformations.selectNodes(searchXPath);
+			List<AssetRule> assets = getTransformations(context).getAssets(contentType, transformationContext);
 		
 			if (assets.size() == 0) {
 				mLogger.info("No transformations found for ContentType(" + contentType + ") TransformationContext(" + transformationContext + ")");
+				success = true;
 				return true;
 			}
-			mLogger.debug(assets.size() + " Assets xpaths found for ContentType(" + contentType + ") TransformationContext(" + transformationContext + ")");
+			if (mLogger.isDebugEnabled()) {
+				mLogger.debug(assets.size() + " Assets xpaths found for ContentType(" + contentType + ") TransformationContext(" + transformationContext + ")");
+			}
 			
-			for(Iterator assetsIter = assets.listIterator(); assetsIter.hasNext(); ) {
+			for(Iterator<AssetRule> assetsIter = assets.iterator(); assetsIter.hasNext(); ) {
 
-				Element asset = (Element) assetsIter.next();
-				String xpath = asset.attributeValue("XPath");
-				if (xpath == null) continue;
+				AssetRule asset = assetsIter.next();
+				String xpath = asset.getXPath();
 
 				// get all transformations to be applied to assets for this xpath
-				List transformations = asset.elements("Transformation");
+				List<TransformationRule> transformations = asset.getTransformations();
 
-				mLogger.debug(" >> " + transformations.size() + " transformations found for xpath " + xpath);
+				if (mLogger.isDebugEnabled()) {
+					mLogger.debug(" >> " + transformations.size() + " transformations found for xpath " + xpath);
+				}
 				
 				// find all elements on the xpath of the sourceDCR
 				String localisedXpath = locale.replaceLocale(xpath);
@@ -249,45 +545,30 @@ public class MediaBinClient {
 					continue;
 				}
 
-				// Some xPath's cannot be used as a folder name, for these a FileSystemFriendlyPath is provided 
-				String fileSystemFriendlyPath = asset.attributeValue("FileSystemFriendlyPath");
-				fileSystemFriendlyPath = (fileSystemFriendlyPath == null) ? xpath.replace('/', '_') : fileSystemFriendlyPath.replace('/', '_');
-
-				String assetIdXPath   = asset.attributeValue("AssetIdXPath");
-				String assetPathXPath = asset.attributeValue("AssetPathXPath");
+				String assetIdXPath   = asset.getAssetIdXPath();
+				String assetPathXPath = asset.getAssetPathXPath();
 				
-				if (assetIdXPath == null || assetIdXPath.length() == 0) {
-					mLogger.error("No AssetIdXPath value set in MediaBin transformation Asset element : " + asset.asXML());
+				if (assetIdXPath == null) {
+					// already reported when the transformations DCR was compiled
 					continue;
 				}
-				if (assetPathXPath != null && assetPathXPath.length() == 0) {
-					assetPathXPath = null;
-				}
 				
-				mLogger.debug(" >> " + dcrElements.size() + " dcrElements found for localised xpath " + localisedXpath);
+				if (mLogger.isDebugEnabled()) {
+					mLogger.debug(" >> " + dcrElements.size() + " dcrElements found for localised xpath " + localisedXpath);
+				}
 				
-				for(Iterator transformationsIter = transformations.listIterator(); transformationsIter.hasNext(); ) {
-
-					Element transform = (Element) transformationsIter.next();
-					String transformedName = transform.attributeValue("TransformedName");
-					String taskName = transform.attributeValue("TaskName");
-
-					mLogger.debug(" >> Found Transformation: " + transformedName + " >> "+ taskName);				
-
-					List params = transform.elements("RuntimeParameter");		
-					HashMap txParams = new HashMap();
-					StringBuffer nameParams = new StringBuffer();
-
-					for (Iterator itr = params.iterator(); itr.hasNext(); )
-					{
-						Element param = (Element) itr.next();
-						String name = param.attributeValue("ParameterName");
-						String value = param.attributeValue("ParameterValue");
-						mLogger.debug(" >> >> MediaBin Parameter: " + name + ": " + value);
-						txParams.put(name, MediaBinRequestUtils.createParameter(name, value));
-						nameParams.append("_").append(value);
+				for(Iterator<TransformationRule> transformationsIter = transformations.iterator(); transformationsIter.hasNext(); ) {
+
+					TransformationRule transform = transformationsIter.next();
+					String transformedName = transform.getTransformedName();
+					String taskName = transform.getTaskName();
+
+					if (mLogger.isDebugEnabled()) {
+						mLogger.debug(" >> Found Transformation: " + transformedName + " >> "+ taskName);
 					}
 
+					// the DCR is only read and written on this thread, the import decisions for the elements may run in parallel
+					List<ImportDecision> decisions = new ArrayList<ImportDecision>(dcrElements.size());
 					for(Iterator dcrElemIter = dcrElements.listIterator(); dcrElemIter.hasNext(); ) {
 						
 						Element dcrElement = (Element) dcrElemIter.next();
@@ -301,53 +582,161 @@ public class MediaBinClient {
 							continue;
 						}
 
-						mLogger.debug(" >> >> Found Element: " + assetId+ " >> "+ assetPath);
+						if (mLogger.isDebugEnabled()) {
+							mLogger.debug(" >> >> Found Element: " + assetId+ " >> "+ assetPath);
+						}
+						
+						decisions.add(new ImportDecision(dcrElement, assetId, assetPath, contentType, asset, transform, context, pathConfig));
+					}
+					
+					// as when the decisions were made one at a time, a failure still leaves the elements before it in the DCR
+					List<RequestImportAssetResult> results = new ArrayList<RequestImportAssetResult>(decisions.size());
+					Exception failure = null;
+					try {
+						decideImports(decisions, results);
+					} catch (Exception e) {
+						failure = e;
+					}
+					if (trace != null) {
+						trace.rule(decisions.size());
+					}
+					
+					// add the elements in document order, so the DCR is the same however the decisions were run
+					for (int i = 0; i < results.size(); i++) {
 						
-						RequestImportAssetResult result = requestImportAsset(
-											assetId, assetPath, contentType, fileSystemFriendlyPath, 
-											taskName, nameParams.toString(), txParams, transform.attributeValue("ResultExt"), 
-											context, pathConfig
-										);
+						Element dcrElement = decisions.get(i).dcrElement;
+						RequestImportAssetResult result = results.get(i);
 						
 						// something went wrong, skip this entry
-						if (result == null) continue;
+						if (result == null) {
+							if (trace != null) trace.failed();
+							continue;
+						}
+						if (trace != null) {
+							trace.result(!result.transformRequested);
+						}
 						
 						Element transformedElem = dcrElement.addElement(transformedName);
 						transformedElem.addAttribute(TRANSFORMATION_READY_ATTRIBUTE, (result.transformRequested) ? "no" : "yes");
 						transformedElem.setText(result.filePath);
+						if (futures != null) {
+							futures.add(result.toFuture());
+						}
 
 					}
+					
+					if (failure != null) {
+						throw failure;
+					}
 				}
 			}
 
+			success = true;
 			return true;
 			
 		} catch (Exception e) {
 			mLogger.error("Error retrieving files : " + e.getMessage(), e);
+		} finally {
+			MediaBinMetrics.time(MediaBinMetrics.RENDER_IMPORT_SOURCE_ASSETS, start);
+			if (trace != null) {
+				trace.finish(success);
+			}
 		}
 		
 		return false;
 	}
+	
+	/**
+	 * Runs the import decisions, in parallel on the render executor when there are enough of them to be worth it
+	 * 
+	 * @param decisions	the decisions to run
+	 * @param results	the list the results are added to, in the same order as the decisions, up to the first that failed
+	 * @throws Exception the first exception thrown by a decision
+	 */
+	private static void decideImports(List<ImportDecision> decisions, List<RequestImportAssetResult> results) throws Exception {
+		
+		if (renderExecutor == null || decisions.size() < renderParallelThreshold) {
+			for (Iterator<ImportDecision> iter = decisions.iterator(); iter.hasNext(); ) {
+				results.add(iter.next().call());
+			}
+			return;
+		}
+		
+		List<Future<RequestImportAssetResult>> pending = renderExecutor.invokeAll(decisions);
+		try {
+			for (Iterator<Future<RequestImportAssetResult>> iter = pending.iterator(); iter.hasNext(); ) {
+				results.add(iter.next().get());
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * The call to requestImportAsset() for one element of a source DCR
+	 */
+	private static class ImportDecision implements Callable<RequestImportAssetResult> {
+		
+		final Element dcrElement;
+		private final String assetId;
+		private final String assetPath;
+		private final String contentType;
+		private final AssetRule asset;
+		private final TransformationRule transform;
+		private final RequestContext context;
+		private final MediaBinClientPathConfig pathConfig;
+		
+		ImportDecision(Element dcrElement, String assetId, String assetPath, String contentType, AssetRule asset, TransformationRule transform, 
+				RequestContext context, MediaBinClientPathConfig pathConfig) {
+			this.dcrElement = dcrElement;
+			this.assetId = assetId;
+			this.assetPath = assetPath;
+			this.contentType = contentType;
+			this.asset = asset;
+			this.transform = transform;
+			this.context = context;
+			this.pathConfig = pathConfig;
+		}
+
+		public RequestImportAssetResult call() throws Exception {
+			return requestImportAsset(
+					assetId, assetPath, contentType, asset.getFileSystemFriendlyPath(), 
+					transform.getTaskName(), transform.getNameParams(), transform.getParameters(), transform.getResultExt(), 
+					context, pathConfig, false
+				);
+		}
+		
+	}
 
 	
 	/**
-	 * Get the path config bean, set the context and return it.
+	 * Get the path config bean and return a view of it bound to the context. The bean itself is shared by 
+	 * every request and is not changed, so the view can be used from any thread working on the request
 	 * 
 	 * @param context
 	 * @return
 	 */
 	public static MediaBinClientPathConfig getPathConfig(RequestContext context) { 
 	
-	    MediaBinClientPathConfig pathConfig = (MediaBinClientPathConfig) ApplicationContextUtils.getBean(PATH_CONFIG_BEAN_ID);
+	    MediaBinClientPathConfig pathConfig = pathConfigOverride;
 	    if (pathConfig == null) {
-	        throw new RuntimeException("Bean id: " + PATH_CONFIG_BEAN_ID + ", not found in the application context, unable to retrieve MediaBinClientPathConfig object.");
+	    	pathConfig = (MediaBinClientPathConfig) ApplicationContextUtils.getBean(PATH_CONFIG_BEAN_ID);
+	    	if (pathConfig == null) {
+	    		throw new RuntimeException("Bean id: " + PATH_CONFIG_BEAN_ID + ", not found in the application context, unable to retrieve MediaBinClientPathConfig object.");
+	    	}
+	    	
+	    	if (mLogger.isDebugEnabled()) {
+	    		mLogger.debug("MediaBinClient: successfully retrieved object by bean id: " + PATH_CONFIG_BEAN_ID + ", object type: " + pathConfig.getClass().getName());
+	    	}
 	    }
 	    
-	    if (mLogger.isDebugEnabled()) {
-	    	mLogger.debug("MediaBinClient: successfully retrieved object by bean id: " + PATH_CONFIG_BEAN_ID + ", object type: " + pathConfig.getClass().getName());
-	    }
+	    pathConfig = pathConfig.forContext(context);
 	    
-	    pathConfig.setContext(context);
+	    // the first render against an import directory has it indexed, so later renders don't need to stat the files
+	    MediaBinImportIndex.warm(pathConfig.getFile(""));
 	    
 	    return pathConfig;
 	}
@@ -365,6 +754,9 @@ public class MediaBinClient {
 	 * @param txParams
 	 * @param resultExt
 	 * @param context
+	 * @param pathConfig
+	 * @param callerMayRun	true if the import may run on this thread when the work queue is full, only for importAsset(), 
+	 *						a render leaves the placeholder for the next render instead
 	 * @return
 	 * @throws MediaBinRequestException
 	 * @throws RemoteException
@@ -373,7 +765,7 @@ public class MediaBinClient {
 	private static RequestImportAssetResult requestImportAsset(
 				String assetId, String assetPath, String contentType, String fileSystemFriendlyPath, 
 				String taskName, String nameParams, HashMap txParams, String resultExt, 
-				RequestContext context, MediaBinClientPathConfig pathConfig
+				RequestContext context, MediaBinClientPathConfig pathConfig, boolean callerMayRun
 				) 
 				throws MediaBinRequestException, RemoteException {
 		
@@ -386,29 +778,43 @@ public class MediaBinClient {
 		
 		String filename = null;
 		boolean deriveExt = false;
+		// the name the placeholder and the import key are made from, without any extension that is derived, 
+		// so that they are the same before and after the extension is known
+		String placeholderName = null;
 		if (assetPath == null || assetPath.length() == 0) {
 			// if no asset path exists, then we don't know the filename 
 			if (taskName.equals("(None)")) {
 				// if we are not performing a transformation, then we just use a default filename
 				filename = new String(DEFAULT_TRANSFORMED_FILENAME);
+				placeholderName = DEFAULT_TRANSFORMED_FILENAME;
 				// at this point we don't even know the extension, so we will have to derive it when we download the file
 				deriveExt = true;
 				
-				// attempt to find the local cache file								
-				File parentDir = pathConfig.getFile(relativeFileDir);
-				if (parentDir.exists()) {
+				String ext = MediaBinExtensionCache.get(assetId);
+				if (ext != null) {
+					// the extension is known from an earlier import of the asset
+					filename = filename + ext;
+					deriveExt = false;
+				}
+				else {
+					// attempt to find the local cache file								
+					File parentDir = pathConfig.getFile(relativeFileDir);
 					// find any files that matching "original.*" - these are the local cached files
-					String[] files = parentDir.list(new DefaultFilenameFilter());
-					if (files.length == 1) {
-						// we have a winner! Update the filename and filePath
+					String[] files = MediaBinImportIndex.list(parentDir, DEFAULT_TRANSFORMED_FILENAME + ".");
+					if (files != null && files.length == 1) {
+						// we have a winner! Update the filename and filePath, and remember the extension
 						filename = files[0];
+						deriveExt = false;
+						MediaBinExtensionCache.put(assetId, filename.substring(DEFAULT_TRANSFORMED_FILENAME.length()));
 					}
-					else if (files.length >= 2) {
+					else if (files != null && files.length >= 2) {
 						// we have more than 2 or more matching files!
 						// this shouldn't really happen - abort
 						mLogger.error("Found " + files.length + " matching default files with different extensions for AssetId " + assetId + " in " + parentDir);
 						return null;
 					}
+					// otherwise this is the first render of the asset, the import asks MediaBin for its name on the work queue,
+					// and the file is reported without its extension until it has been imported
 				}
 			}
 			else {
@@ -440,30 +846,50 @@ public class MediaBinClient {
 		// filename = "original"
 		// placeholderFilename = ".placeholder.original"
 		// therefore glob of "original.*" should only find one file
-		String placeholderFilePath =  relativeFileDir + PLACEHOLDER_FILE_PREFIX + filename;
+		String placeholderFilePath =  relativeFileDir + PLACEHOLDER_FILE_PREFIX + ((placeholderName == null) ? filename : placeholderName);
 
 		File file = pathConfig.getFile(filePath);
 		File placeholderFile = pathConfig.getFile(placeholderFilePath);
+		
+		// imports are keyed on the placeholder file, as it is known before any file extension is derived
+		String importKey = placeholderFile.getPath();
+		PendingImport pending = MediaBinImportRegistry.getPending(importKey);
+		if (pending != null) {
+			// this JVM is already importing the file, attach to that import rather than checking the filesystem
+			if (mLogger.isDebugEnabled()) {
+				mLogger.debug(" >> >> Import already pending: " + pending.getFilePath());
+			}
+			return new RequestImportAssetResult(pathConfig.getFileURL(pending.getFilePath()), true, file, placeholderFile, pending);
+		}
 	
 		boolean doRequest = false;
-		MediaBinRunnableRequest mbr = null;
-		if (file.exists()) {
+		MediaBinTransformationRequest mbr = null;
+		boolean deriveExtInBackground = false;
+		Priority priority = Priority.HIGH;
+		File createdPlaceholderFile = null;
+		long lastModified = MediaBinImportIndex.lastModified(file);
+		if (lastModified != 0) {
 			// file exists, check when it was last modified
 			
-			mLogger.debug(" >> >> File exists: " + filePath);
+			if (mLogger.isDebugEnabled()) {
+				mLogger.debug(" >> >> File exists: " + filePath);
+			}
 			long lastModifiedInMediaBin = MediaBinRefreshCache.getModifiedTime(assetId);
 			if (lastModifiedInMediaBin == 0) {
 				// we don't know the last time it was modified in MediaBin (or the cache entry has expired)
-				// so re-fetch from MediaBin
-				mbr = new MediaBinUpToDateRequest(new MediaBinTransformationRequest(assetId, assetPath, taskName, file, placeholderFile, txParams));
+				// so check it against MediaBin in the next batch, which transforms it again if it has changed
+				MediaBinFreshnessChecker.check(new FreshnessCheck(importKey, filePath, assetId, assetPath, taskName, file, placeholderFile, txParams));
 				doRequest = true;
 				
 				// TODO: if deriveExt == true, check to make sure the extension is the same as the current filename
 			}
 			else {
-				mLogger.debug("Compare File Mod : " + file.lastModified() + " < " + lastModifiedInMediaBin);
-				if (file.lastModified() < lastModifiedInMediaBin) {
+				if (mLogger.isDebugEnabled()) {
+					mLogger.debug("Compare File Mod : " + lastModified + " < " + lastModifiedInMediaBin);
+				}
+				if (lastModified < lastModifiedInMediaBin) {
 					mbr = new MediaBinTransformationRequest(assetId, assetPath, taskName, file, placeholderFile, txParams);
+					priority = Priority.NORMAL;
 					doRequest = true;
 				}
 			}
@@ -473,8 +899,11 @@ public class MediaBinClient {
 			if (placeholderFile.exists()) {
 				// placeholder file exists, this means there is probably another thread downloading the asset currently
 				
-				mLogger.debug("Compare Placeholder Mod : " + (placeholderFile.lastModified() + updateCheckInterval) + " < " + Calendar.getInstance().getTimeInMillis());
-				if (placeholderFile.lastModified() + updateCheckInterval < Calendar.getInstance().getTimeInMillis()) {
+				long now = System.currentTimeMillis();
+				if (mLogger.isDebugEnabled()) {
+					mLogger.debug("Compare Placeholder Mod : " + (placeholderFile.lastModified() + updateCheckInterval) + " < " + now);
+				}
+				if (placeholderFile.lastModified() + updateCheckInterval < now) {
 					// if the file was last modified longer than we normally do checks, 
 					// then lets assume the other thread didn't finish the download (server restart, etc)
 					// so schedule another download
@@ -485,36 +914,47 @@ public class MediaBinClient {
 				}
 			}
 			
+			if (createPlaceholder && deriveExt && MediaBinExtensionCache.isLookupFailed(assetId)) {
+				// MediaBin could not tell the last import what the asset is called, don't ask again on every render
+				if (mLogger.isDebugEnabled()) {
+					mLogger.debug(" >> >> Extension lookup failed recently, not importing : " + filePath);
+				}
+				createPlaceholder = false;
+			}
+			
 			if (createPlaceholder && createPlaceholderFile(placeholderFile)) {
+				createdPlaceholderFile = placeholderFile;
 				doRequest = true;
 				mbr = new MediaBinTransformationRequest(assetId, assetPath, taskName, file, placeholderFile, txParams);
 				
-				if (deriveExt) {
-					// if we need to derive the extension of the file, we need to call MediaBin to get the extension of the file
-					try {
-						MBAsset mbAsset = mbr.getAsset(assetId, assetPath);
-						String ext = mbAsset.getMName().substring(mbAsset.getMName().lastIndexOf('.'));
-						// update all of the variables relating to the file
-						filename = filename + ext;
-						filePath = relativeFileDir + filename;
-						file = pathConfig.getFile(filePath);
-						((MediaBinTransformationRequest)mbr).setLocalFile(file);
-						
-					} catch (MediaBinRequestException e) {
-						mLogger.error("Error deriving file extension : " + e.getMessage(), e);
-						doRequest = false;
-					}
-				}
+				// if the render could not derive the extension of the file, the import asks MediaBin for it
+				deriveExtInBackground = deriveExt;
 			}
 		}
 		
 		if (doRequest && mbr != null) {
-			mLogger.debug(" >> >> Starting " + mbr.getClass().getCanonicalName() + " : " + assetPath);
-			// Give the request to the thread manager to start, avoiding too many connections to mediabin
-			pool.execute(mbr);
+			if (mLogger.isDebugEnabled()) {
+				mLogger.debug(" >> >> Starting " + mbr.getClass().getCanonicalName() + " : " + assetPath);
+			}
+			// Give the request to the work queue, avoiding too many connections to mediabin
+			// if another thread in this JVM got there first, the request is dropped and we report its file instead
+			// the file is downloaded to a temporary file and renamed into place, so it is never seen half written
+			try {
+				MediaBinImportRequest importRequest = new MediaBinImportRequest(mbr, file, placeholderFile, assetId, assetPath, deriveExtInBackground);
+				pending = MediaBinImportRegistry.submit(importKey, filePath, importRequest, priority, createdPlaceholderFile, callerMayRun);
+				filePath = pending.getFilePath();
+			} catch (RejectedExecutionException e) {
+				// the next render will try again
+				mLogger.warn(e.getMessage() + " : " + filePath);
+			}
+		}
+
+		if (nameParams.length() == 0) {
+			// this is what streamAsset() would fetch, so let it serve the imported file instead
+			MediaBinLocalStreamer.register(new FreshnessCheck(importKey, filePath, assetId, assetPath, taskName, file, placeholderFile, txParams));
 		}
 
-		return new RequestImportAssetResult(pathConfig.getFileURL(filePath), doRequest);
+		return new RequestImportAssetResult(pathConfig.getFileURL(filePath), doRequest, file, placeholderFile, pending);
 
 	}
 	
@@ -522,10 +962,27 @@ public class MediaBinClient {
 		
 		public String filePath;
 		public boolean transformRequested;
+		public File file;
+		public File placeholderFile;
+		public PendingImport pending;
 
-		RequestImportAssetResult(String filePath, boolean transformRequested) {
+		RequestImportAssetResult(String filePath, boolean transformRequested, File file, File placeholderFile, PendingImport pending) {
 			this.filePath = filePath;
 			this.transformRequested = transformRequested;
+			this.file = file;
+			this.placeholderFile = placeholderFile;
+			this.pending = pending;
+		}
+		
+		MediaBinImportFuture toFuture() {
+			if (pending != null) {
+				return MediaBinImportFuture.pending(filePath, pending, file);
+			}
+			if (MediaBinImportIndex.exists(file)) {
+				return MediaBinImportFuture.completed(filePath, file);
+			}
+			// being imported by another JVM, or the work queue was full and the future fails straight away
+			return MediaBinImportFuture.watching(filePath, file, placeholderFile);
 		}
 
 	}	
@@ -560,14 +1017,41 @@ public class MediaBinClient {
 	    
 	}
 	
-	private static class DefaultFilenameFilter implements FilenameFilter {
-		
-		private static String DEFAULT_TRANSFORMED_FILENAME_DOT = DEFAULT_TRANSFORMED_FILENAME + ".";
-
-		public boolean accept(File dir, String name) {
-			return name.startsWith(DEFAULT_TRANSFORMED_FILENAME_DOT);
+	/**
+	 * Creates a temporary file in the same directory as the passed file, so that it can be atomically 
+	 * renamed into place with publishTempFile() once it has been written
+	 * 
+	 * @param file the file that will be written
+	 * 
+	 * @return the temporary file
+	 * @throws IOException when the file cannot be created
+	 */
+	protected static File createTempFile(File file) throws IOException {
+		File parentDir = file.getParentFile();
+		if (!parentDir.exists() && !parentDir.mkdirs()) {
+			throw new IOException("Unable to create directory for temporary file : " + parentDir.getAbsolutePath());
 		}
-
+		return File.createTempFile(TEMP_FILE_PREFIX + file.getName() + ".", null, parentDir);
+	}
+	
+	/**
+	 * Renames a temporary file created by createTempFile() to the file it was written for, replacing 
+	 * that file if it exists. Readers see either the old file or the complete new one, never a partial file
+	 * 
+	 * @param tempFile	the written temporary file
+	 * @param file		the file it was written for
+	 * 
+	 * @return true if the file was renamed, false otherwise (the temporary file is deleted)
+	 */
+	protected static boolean publishTempFile(File tempFile, File file) {
+		// rename() replaces the file atomically on POSIX filesystems, other platforms need the file removing first
+		if (tempFile.renameTo(file) || (file.delete() && tempFile.renameTo(file))) {
+			MediaBinImportIndex.update(file);
+			return true;
+		}
+		mLogger.error("Unable to rename " + tempFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+		tempFile.delete();
+		return false;
 	}
 	
 	/**
@@ -576,34 +1060,16 @@ public class MediaBinClient {
 	 * @param context
 	 * @param importedRelativePath
 	 * @param onlyIfReady	only return the file object if the asset has been downloaded from mediabin
-	 * @return	the file object, if onlyIfReady is true and the file does not exist, or it's placeholder file still exists, 
-	 *          then null is returned  
+	 * @return	the file object, if onlyIfReady is true and the file does not exist then null is returned. Imports are
+	 *          renamed into place once they are complete, so a file that exists is always ready  
 	 */
 	public static File getImportedAssetFile(RequestContext context, String importedRelativePath, boolean onlyIfReady) {
 
 		MediaBinClientPathConfig pathConfig = getPathConfig(context);
 		File asset = pathConfig.getFile(importedRelativePath);
 		
-		if (onlyIfReady) {
-			
-			if (!asset.exists()) return null;
-			if (asset.length() <= 1) return null;
-					
-			String filename = asset.getName();
-			String placeholderFilename = PLACEHOLDER_FILE_PREFIX + filename;
-			
-			File placeholder = new File(asset.getParentFile().getPath() + File.separator + placeholderFilename);
-
-			if (placeholder.exists()) return null;
-			
-			// If this is an download without a name, then we also need to check for ".placeholder.original" (no extension)
-			if (filename.startsWith(DEFAULT_TRANSFORMED_FILENAME + ".")) {
-				placeholderFilename = PLACEHOLDER_FILE_PREFIX + DEFAULT_TRANSFORMED_FILENAME;
-				placeholder = new File(asset.getParentFile().getPath() + File.separator + placeholderFilename);
-
-				if (placeholder.exists()) return null;
-			}
-			
+		if (onlyIfReady && !MediaBinImportIndex.exists(asset)) {
+			return null;
 		}
 		
 		return asset;
@@ -626,6 +1092,26 @@ public class MediaBinClient {
 		
 	}
 	
+	/**
+	 * Streams the asset to the response object. Setting content type and attachment headers appropriately
+	 * This does no transformations (it calls the "(None)" retrieval task)
+	 * 
+	 * The imported copy of the asset is sent if there is one, honouring conditional and range requests, 
+	 * otherwise it is streamed directly from MediaBin.
+	 * 
+	 * @param assetId		the asset id to stream
+	 * @param assetPath		optional, if the assetId doesn't work fall back to this value 
+	 * @param request		the request, used for conditional and range requests
+	 * @param response		the response objecto to write the downloaded asset to
+	 * 
+	 * @throws MediaBinRequestException
+	 */
+	public static void streamAsset(String assetId, String assetPath, HttpServletRequest request, HttpServletResponse response) throws MediaBinRequestException, MediaBinRequestAssetNotFoundException {
+		
+		streamAsset(assetId, assetPath, "(None)", request, response);
+		
+	}
+	
 	/**
 	 * Streams the asset directly from MediaBin to the response object. Setting content type and attachment headers appropriately
 	 * This does no transformations (it calls the "(None)" retrieval task)
@@ -639,8 +1125,99 @@ public class MediaBinClient {
 	 */
 	public static void streamAsset(String assetId, String assetPath, String transformation, HttpServletResponse response) throws MediaBinRequestException, MediaBinRequestAssetNotFoundException {
 		
-		MediaBinStreamingTransformationRequest mbr = new MediaBinStreamingTransformationRequest(assetId, assetPath, transformation, null, response);
-		mbr.streamAsset();
+		streamAsset(assetId, assetPath, transformation, null, response);
+		
+	}
+	
+	/**
+	 * Streams the asset to the response object. Setting content type and attachment headers appropriately
+	 * 
+	 * The imported copy of the asset is sent if there is one that is not known to be out of date, 
+	 * honouring conditional and range requests, otherwise it is streamed directly from MediaBin.
+	 * 
+	 * @param assetId		the asset id to stream
+	 * @param assetPath		optional, if the assetId doesn't work fall back to this value 
+	 * @param transformation	the transformation task name
+	 * @param request		the request, used for conditional and range requests, may be null
+	 * @param response		the response objecto to write the downloaded asset to
+	 * 
+	 * @throws MediaBinRequestException
+	 */
+	public static void streamAsset(String assetId, String assetPath, String transformation, HttpServletRequest request, HttpServletResponse response) throws MediaBinRequestException, MediaBinRequestAssetNotFoundException {
+		
+		try {
+			if (MediaBinLocalStreamer.stream(assetId, transformation, request, response)) {
+				return;
+			}
+		} catch (IOException e) {
+			if (response.isCommitted()) {
+				throw new MediaBinRequestException("Error streaming imported file for asset " + assetId, e);
+			}
+			mLogger.warn("Unable to stream imported file for asset " + assetId + ", streaming from MediaBin : " + e.getMessage());
+			// drop the headers set for the imported file
+			response.reset();
+		}
+		
+		// if we know where the asset is imported to, keep a copy of what we stream so it does not have to be imported again
+		FreshnessCheck target = MediaBinLocalStreamer.getImport(assetId, transformation);
+		File tempFile = null;
+		MediaBinTeeResponse tee = null;
+		if (target != null && MediaBinImportRegistry.getPending(target.importKey) == null 
+				&& !target.placeholderFile.exists() && createPlaceholderFile(target.placeholderFile)) {
+			try {
+				tempFile = createTempFile(target.file);
+				tee = new MediaBinTeeResponse(response, tempFile);
+			} catch (IOException e) {
+				mLogger.warn("Unable to keep a copy of streamed asset " + assetId + " : " + e.getMessage());
+				if (tempFile != null) tempFile.delete();
+				target.placeholderFile.delete();
+				tempFile = null;
+			}
+		}
+		
+		boolean streamed = false;
+		long start = System.nanoTime();
+		try {
+			MediaBinStreamingTransformationRequest mbr = new MediaBinStreamingTransformationRequest(assetId, assetPath, transformation, null, (tee == null) ? response : tee);
+			boolean connectionFailed = true;
+			try {
+				mbr.connect();
+				mbr.streamAsset();
+				streamed = true;
+				connectionFailed = false;
+			}
+			catch (MediaBinRequestAssetNotFoundException e) {
+				// MediaBin answered, the connection is fine
+				connectionFailed = false;
+				throw e;
+			}
+			finally {
+				if (connectionFailed) {
+					mbr.invalidateConnection();
+				}
+				else {
+					mbr.releaseConnection();
+				}
+			}
+		}
+		finally {
+			MediaBinMetrics.time(MediaBinMetrics.SOAP_STREAM, start);
+			if (tee != null) {
+				boolean complete = tee.finish() && streamed;
+				long length = tempFile.length();
+				// finish() has checked the bytes copied against the Content-Length, and they must all have reached the file
+				if (complete && length == tee.getCopiedLength() && publishTempFile(tempFile, target.file)) {
+					MediaBinMetrics.download(length, start);
+					if (mLogger.isDebugEnabled()) {
+						mLogger.debug("Kept streamed asset " + assetId + " : " + target.filePath);
+					}
+				}
+				else {
+					tempFile.delete();
+				}
+				target.placeholderFile.delete();
+			}
+		}
 		
 	}
 	/**
@@ -1,20 +1,45 @@
 package com.eu.interflow.livesite.mediabin;
 
 import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import com.interwoven.livesite.runtime.RequestContext;
 
 /**
  * One instance of a MediaBinClientPathConfig class exists and is declared as a bean with the id
  * "com.eu.interflow.livesite.mediabin.mediaBinClientPathConfigPath" 
+ * 
+ * As the bean is shared by every request, paths should be resolved with getFile(RequestContext, String)
+ * and getFileURL(RequestContext, String), or through the view returned by forContext(), rather than by 
+ * setting the context on the bean.
  *   
  * @author brobertson
  *
  */
 abstract public class MediaBinClientPathConfig {
 
+	private static Log mLogger = LogFactory.getLog(MediaBinClientPathConfig.class);
+	
+	/**
+	 * The most FileDal roots (sites and workspaces) whose import directory is remembered
+	 */
+	private static final int MAX_IMPORT_ROOTS = 1000;
+
 	protected RequestContext context;
 	
+	/**
+	 * The import directory of each FileDal root, when isResolvedUnderImportRoot(). Only the shared bean 
+	 * has one, created the first time it is needed, so that the view made for each request allocates nothing
+	 */
+	private volatile ConcurrentHashMap<String, File> importRoots = null;
+	
+	/**
+	 * @deprecated the bean is shared by concurrent requests, use forContext() or the methods that take the context
+	 */
+	@Deprecated
 	public void setContext(RequestContext context) {
 		this.context = context;
 	}
@@ -37,4 +62,150 @@ abstract public class MediaBinClientPathConfig {
 	 */
 	abstract public String getFileURL(String relativePath);
 	
+	/**
+	 * Take a relative file path and return the appropriate file object for the passed context. 
+	 * Subclasses should override this, the default sets the context for the duration of a getFile() call
+	 * 
+	 * @param context
+	 * @param relativePath
+	 * @return the File object represented by the path
+	 */
+	public File getFile(RequestContext context, String relativePath) {
+		synchronized (this) {
+			RequestContext previous = this.context;
+			this.context = context;
+			try {
+				return getFile(relativePath);
+			} finally {
+				this.context = previous;
+			}
+		}
+	}
+	
+	/**
+	 * Take the same relativePath as getFile() and return a URL that the file is accessible over for the passed context.
+	 * Subclasses should override this, the default sets the context for the duration of a getFileURL() call
+	 * 
+	 * @param context
+	 * @param relativePath
+	 * @return the url
+	 */
+	public String getFileURL(RequestContext context, String relativePath) {
+		synchronized (this) {
+			RequestContext previous = this.context;
+			this.context = context;
+			try {
+				return getFileURL(relativePath);
+			} finally {
+				this.context = previous;
+			}
+		}
+	}
+	
+	/**
+	 * Subclasses that resolve every relative path under the import directory, that is where getFile(context, path) 
+	 * is always new File(getFile(context, ""), path), can return true so that the import directory is resolved 
+	 * once for each FileDal root rather than for every file
+	 * 
+	 * @return false, every file is resolved by getFile(context, path)
+	 */
+	protected boolean isResolvedUnderImportRoot() {
+		return false;
+	}
+	
+	/**
+	 * Returns a view of this config bound to the passed context, for use by one request
+	 * 
+	 * @param context
+	 * @return the view
+	 */
+	public MediaBinClientPathConfig forContext(RequestContext context) {
+		return new BoundPathConfig(this, context);
+	}
+	
+	/**
+	 * @return the import directory for the FileDal root of the context, resolved the first time that root is seen
+	 */
+	@SuppressWarnings("deprecation")
+	private File getImportRoot(RequestContext context) {
+		ConcurrentHashMap<String, File> roots = importRoots;
+		if (roots == null) {
+			synchronized (this) {
+				roots = importRoots;
+				if (roots == null) {
+					roots = new ConcurrentHashMap<String, File>();
+					importRoots = roots;
+				}
+			}
+		}
+		String key = context.getFileDal().getRoot();
+		File root = roots.get(key);
+		if (root == null) {
+			root = getFile(context, "");
+			if (roots.size() < MAX_IMPORT_ROOTS) {
+				roots.put(key, root);
+			}
+		}
+		return root;
+	}
+	
+	/**
+	 * A MediaBinClientPathConfig for one request, delegating to the shared bean
+	 */
+	private static class BoundPathConfig extends MediaBinClientPathConfig {
+		
+		private final MediaBinClientPathConfig shared;
+		
+		private volatile File importRoot = null;
+		
+		BoundPathConfig(MediaBinClientPathConfig shared, RequestContext context) {
+			this.shared = shared;
+			this.context = context;
+		}
+		
+		/**
+		 * Ignored, the view stays bound to its request
+		 */
+		@Override
+		public void setContext(RequestContext context) {
+			if (context != this.context) {
+				mLogger.warn("Ignoring setContext() on a MediaBinClientPathConfig view, it is bound to its request");
+			}
+		}
+		
+		@Override
+		public File getFile(String relativePath) {
+			if (!shared.isResolvedUnderImportRoot()) {
+				return shared.getFile(context, relativePath);
+			}
+			File root = importRoot;
+			if (root == null) {
+				root = shared.getImportRoot(context);
+				importRoot = root;
+			}
+			return (relativePath.length() == 0) ? root : new File(root, relativePath);
+		}
+		
+		@Override
+		public String getFileURL(String relativePath) {
+			return shared.getFileURL(context, relativePath);
+		}
+		
+		@Override
+		public File getFile(RequestContext context, String relativePath) {
+			return (context == this.context) ? getFile(relativePath) : shared.getFile(context, relativePath);
+		}
+		
+		@Override
+		public String getFileURL(RequestContext context, String relativePath) {
+			return shared.getFileURL(context, relativePath);
+		}
+		
+		@Override
+		public MediaBinClientPathConfig forContext(RequestContext context) {
+			return (context == this.context) ? this : shared.forContext(context);
+		}
+		
+	}
+	
 }
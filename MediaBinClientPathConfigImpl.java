@@ -3,6 +3,7 @@ package com.eu.interflow.livesite.mediabin;
 import java.io.File;
 
 import com.interwoven.livesite.file.FileDal;
+import com.interwoven.livesite.runtime.RequestContext;
 
 public class MediaBinClientPathConfigImpl extends MediaBinClientPathConfig {
 
@@ -22,11 +23,9 @@ public class MediaBinClientPathConfigImpl extends MediaBinClientPathConfig {
 		this.importPath = importPath;
 	}
 
-	@SuppressWarnings("deprecation")
 	@Override
 	public File getFile(String relativePath) {
-		FileDal fd = context.getFileDal();
-		return new File(fd.getRoot() + fd.getSeparator() + importPath + fd.getSeparator() + relativePath);
+		return getFile(context, relativePath);
 	}
 
 	@Override
@@ -34,4 +33,21 @@ public class MediaBinClientPathConfigImpl extends MediaBinClientPathConfig {
 		return importPath + "/" + relativePath;
 	}
 
+	@SuppressWarnings("deprecation")
+	@Override
+	public File getFile(RequestContext context, String relativePath) {
+		FileDal fd = context.getFileDal();
+		return new File(fd.getRoot() + fd.getSeparator() + importPath + fd.getSeparator() + relativePath);
+	}
+
+	@Override
+	public String getFileURL(RequestContext context, String relativePath) {
+		return getFileURL(relativePath);
+	}
+
+	@Override
+	protected boolean isResolvedUnderImportRoot() {
+		return true;
+	}
+
 }
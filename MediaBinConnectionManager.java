@@ -0,0 +1,255 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.axis.MessageContext;
+import org.apache.axis.client.Stub;
+import org.apache.axis.transport.http.HTTPConstants;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mediabin.www.MediaBinServer;
+import com.mediabin.www.MediaBinServerLocator;
+import com.mediabin.www.MediaBinServerSoap;
+
+/**
+ * Pool of authenticated MediaBinServerSoap stubs.
+ *
+ * Stubs are borrowed by the MediaBin requests and given back when the request has finished,
+ * so the stub is only built and authenticated once rather than once per request. Up to
+ * Settings.getMaxConnections() idle stubs are kept, a stub that has been idle for longer
+ * than Settings.getConnectionHealthCheckInterval() is checked against MediaBin before it is
+ * handed out again, and stubs that fail are thrown away.
+ *
+ * New stubs are built by the ServerFactory, which builds an Axis stub for Settings.getMediaBinURL()
+ * unless another factory has been set, or named by Settings.getServerFactory(), e.g. one returning
+ * in-process stubs to run without MediaBin.
+ */
+public class MediaBinConnectionManager {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinConnectionManager.class);
+
+	private static BlockingQueue<PooledConnection> idle = new ArrayBlockingQueue<PooledConnection>(Math.max(1, Settings.getMaxConnections()));
+
+	private static long healthCheckIntervalNanos = Settings.getConnectionHealthCheckInterval() * 1000000L;
+
+	private static AtomicLong created  = new AtomicLong();
+	private static AtomicLong reused   = new AtomicLong();
+	private static AtomicLong evicted  = new AtomicLong();
+
+	private static volatile ServerFactory factory = createServerFactory(Settings.getServerFactory());
+
+	/**
+	 * Builds the stubs handed out by the pool
+	 */
+	public interface ServerFactory {
+
+		/**
+		 * @return a new stub, ready to use
+		 * @throws Exception when the stub cannot be built
+		 */
+		MediaBinServerSoap create() throws Exception;
+
+	}
+
+	/**
+	 * Replaces the factory new stubs are built by, the idle stubs built by the previous factory are dropped
+	 *
+	 * @param serverFactory	the factory, or null to go back to building Axis stubs
+	 */
+	public static void setServerFactory(ServerFactory serverFactory) {
+		factory = (serverFactory == null) ? new AxisServerFactory() : serverFactory;
+		idle.clear();
+		mLogger.info("MediaBin connections are built by " + factory.getClass().getName());
+	}
+
+	/**
+	 * Borrows a stub from the pool, building a new one if there are no healthy idle stubs
+	 *
+	 * @return an authenticated stub, which must be given back with release() or invalidate()
+	 * @throws Exception when a new stub cannot be built
+	 */
+	public static MediaBinServerSoap borrow() throws Exception {
+		PooledConnection connection;
+		while ((connection = idle.poll()) != null) {
+			if (connection.releasedAt + healthCheckIntervalNanos > System.nanoTime() || isHealthy(connection.server)) {
+				reused.incrementAndGet();
+				return connection.server;
+			}
+			evicted.incrementAndGet();
+		}
+
+		created.incrementAndGet();
+		return factory.create();
+	}
+
+	/**
+	 * Gives a stub back to the pool, if the pool is full the stub is dropped
+	 *
+	 * @param server	a stub returned by borrow()
+	 */
+	public static void release(MediaBinServerSoap server) {
+		if (server != null) {
+			idle.offer(new PooledConnection(server));
+		}
+	}
+
+	/**
+	 * Drops a stub that has failed, rather than giving it back to the pool. If it was given back 
+	 * already it is taken out of the pool again, so it is never handed out
+	 *
+	 * @param server	a stub returned by borrow()
+	 */
+	public static void invalidate(MediaBinServerSoap server) {
+		if (server == null) {
+			return;
+		}
+		for (Iterator<PooledConnection> iter = idle.iterator(); iter.hasNext(); ) {
+			if (iter.next().server == server) {
+				iter.remove();
+			}
+		}
+		evicted.incrementAndGet();
+		if (mLogger.isDebugEnabled()) {
+			mLogger.debug("Discarded failed MediaBin connection");
+		}
+	}
+
+	/**
+	 * @return the number of idle stubs in the pool
+	 */
+	public static int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * @return the number of stubs that have been built
+	 */
+	public static long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * @return the number of times an idle stub has been handed out again
+	 */
+	public static long getReusedCount() {
+		return reused.get();
+	}
+
+	/**
+	 * @return the number of stubs thrown away because they failed
+	 */
+	public static long getEvictedCount() {
+		return evicted.get();
+	}
+
+	/**
+	 * @param className	the class name of the factory, which must have a public no argument constructor
+	 * @return the factory, or the Axis factory if the class name is empty or the class cannot be used
+	 */
+	private static ServerFactory createServerFactory(String className) {
+		if (className == null || className.length() == 0) {
+			return new AxisServerFactory();
+		}
+		try {
+			ServerFactory serverFactory = (ServerFactory) Class.forName(className).newInstance();
+			mLogger.warn("MediaBin connections are built by " + className + ", not by the MediaBin server at " + Settings.getMediaBinURL());
+			return serverFactory;
+		}
+		catch (Exception e) {
+			mLogger.error("Unable to use mediabin-server-factory '" + className + "', connecting to " + Settings.getMediaBinURL() + " : " + e.getMessage(), e);
+			return new AxisServerFactory();
+		}
+	}
+
+	private static boolean isHealthy(MediaBinServerSoap server) {
+		try {
+			server.getRootContainer();
+			return true;
+		}
+		catch (Exception e) {
+			mLogger.info("Discarding MediaBin connection that failed its health check : " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static MediaBinServerSoap connect( String strURL, String strDomain, String strUsername, String strPassword, int intHttpTimeout ) throws Exception
+	{
+		//This creates the service
+		MediaBinServer myService = new MediaBinServerLocator();
+		//Two ways to get the Java stub to the service...
+		MediaBinServerSoap myServiceStub;
+
+		if( strURL.equals("") )
+		{
+			//...using the URL specified in the WSDL
+			myServiceStub = myService.getMediaBinServerSoap();
+		}
+		else
+		{
+			//...or we can specify the URL of the web service
+			java.net.URL serviceURL = new java.net.URL( strURL );
+			myServiceStub = myService.getMediaBinServerSoap( serviceURL );
+		}
+
+		//We need to specify the username\password thru the Stub and
+		//use basic authentication since we can't use Windows Integrated
+		String strUser = "";
+
+		if( strDomain.equals("") )
+			strUser = strUsername;
+		else
+			strUser = strDomain + "\\" + strUsername;
+
+		Stub stub = (Stub) myServiceStub;
+		stub.setUsername( strUser );
+		stub.setPassword( strPassword );
+		stub.setTimeout( intHttpTimeout );
+
+		if (Settings.isHttpKeepAlive()) {
+			// keep-alive needs HTTP/1.1, the connections are only reused when the Axis
+			// client-config.wsdd uses the CommonsHTTPSender transport
+			stub._setProperty(MessageContext.HTTP_TRANSPORT_VERSION, HTTPConstants.HEADER_PROTOCOL_V11);
+			stub.setMaintainSession(true);
+		}
+
+		if (mLogger.isDebugEnabled()) {
+			mLogger.debug("Created MediaBin connection to " + strURL + " as " + strUser);
+		}
+
+		//Now we can make calls into the web service using the Java stub
+		return myServiceStub;
+	}
+
+	/**
+	 * Builds authenticated Axis stubs from the MediaBin settings
+	 */
+	private static class AxisServerFactory implements ServerFactory {
+
+		public MediaBinServerSoap create() throws Exception {
+			return connect(
+					Settings.getMediaBinURL(),
+					Settings.getMediaBinLoginDomain(),
+					Settings.getMediaBinLoginUsername(),
+					Settings.getMediaBinLoginPassword(),
+					Settings.getHttpTimeout()
+			);
+		}
+
+	}
+
+	private static class PooledConnection {
+
+		final MediaBinServerSoap server;
+		final long releasedAt = System.nanoTime();
+
+		PooledConnection(MediaBinServerSoap server) {
+			this.server = server;
+		}
+
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.eu.interflow.livesite.mediabin;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Releases what the MediaBin integration holds outside the web application when it is stopped, so
+ * that a redeploy does not leave the old deployment's classes loaded: the MBean, the shutdown hook
+ * (after saving the warm-up snapshot and closing the metadata store, as it would have), and the
+ * threads of the work queue, the import index and the render executor. To be declared in web.xml:
+ *
+ * <pre>
+ * &lt;listener&gt;
+ *     &lt;listener-class&gt;com.eu.interflow.livesite.mediabin.MediaBinContextListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ *
+ * Without it, MediaBinMetrics.registerMBean() replaces the MBean of the previous deployment when
+ * the new one starts.
+ */
+public class MediaBinContextListener implements ServletContextListener {
+
+	public void contextInitialized(ServletContextEvent event) {
+	}
+
+	public void contextDestroyed(ServletContextEvent event) {
+		MediaBinClient.shutdown();
+		MediaBinExtensionCache.flush();
+		MediaBinWarmup.stop();
+		MediaBinMetadataStore.close();
+		MediaBinMetrics.unregisterMBean();
+		MediaBinImportIndex.shutdown();
+		MediaBinWorkQueue.shutdown();
+	}
+
+}
@@ -0,0 +1,225 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Persistent map of asset id to file extension, for the "(None)" imports of assets that have no
+ * asset path, whose file name is "original" plus the extension of the asset in MediaBin.
+ *
+ * The extension is recorded when the import of such an asset has read it from MediaBin, or when a
+ * render finds an existing import, so later renders can name the file without listing the directory
+ * or asking MediaBin. The MediaBinFreshnessChecker records the new extension when an asset changes
+ * type. The map is kept in Settings.getExtensionCacheFile(), which is written a few seconds after
+ * it changes and read again on startup.
+ *
+ * When an import cannot read the name of an asset, that is remembered for
+ * Settings.getAssetCacheNegativeTTL(), and renders don't start another import of it until then.
+ */
+public class MediaBinExtensionCache {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinExtensionCache.class);
+
+	private static final long SAVE_DELAY = 5000; // time in milliseconds
+
+	private static File storeFile = Settings.getExtensionCacheFile();
+
+	private static ConcurrentHashMap<String, String> extensions = load();
+
+	private static AtomicBoolean saveScheduled = new AtomicBoolean(false);
+
+	/**
+	 * The most assets whose failed lookup is remembered
+	 */
+	private static final int MAX_FAILED_LOOKUPS = 10000;
+
+	private static long failedLookupTTLNanos = Settings.getAssetCacheNegativeTTL() * 1000000L;
+
+	/**
+	 * System.nanoTime() of the last failed lookup of each asset, not saved
+	 */
+	private static ConcurrentHashMap<String, Long> failedLookups = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * @param assetId	the asset id
+	 * @return the extension of the asset, including the leading '.', or null if it is not known
+	 */
+	public static String get(String assetId) {
+		return extensions.get(assetId);
+	}
+
+	/**
+	 * @param assetId	the asset id
+	 * @param extension	the extension of the asset, including the leading '.'
+	 */
+	public static void put(String assetId, String extension) {
+		if (!extension.equals(extensions.put(assetId, extension))) {
+			scheduleSave();
+		}
+	}
+
+	/**
+	 * Records that the name of the asset could not be read from MediaBin
+	 *
+	 * @param assetId	the asset id
+	 */
+	public static void lookupFailed(String assetId) {
+		if (failedLookups.size() >= MAX_FAILED_LOOKUPS) {
+			long now = System.nanoTime();
+			for (Iterator<Long> iter = failedLookups.values().iterator(); iter.hasNext(); ) {
+				if (iter.next().longValue() + failedLookupTTLNanos - now < 0) {
+					iter.remove();
+				}
+			}
+			if (failedLookups.size() >= MAX_FAILED_LOOKUPS) {
+				return;
+			}
+		}
+		failedLookups.put(assetId, Long.valueOf(System.nanoTime()));
+	}
+
+	/**
+	 * @param assetId	the asset id
+	 * @return true if reading the name of the asset from MediaBin failed within Settings.getAssetCacheNegativeTTL()
+	 */
+	public static boolean isLookupFailed(String assetId) {
+		Long failedAt = failedLookups.get(assetId);
+		if (failedAt == null) {
+			return false;
+		}
+		if (failedAt.longValue() + failedLookupTTLNanos - System.nanoTime() < 0) {
+			failedLookups.remove(assetId, failedAt);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param name	the name of an asset in MediaBin
+	 * @return the extension of the name, including the leading '.', or an empty string if it has none
+	 */
+	public static String extensionOf(String name) {
+		int dot = name.lastIndexOf('.');
+		return (dot < 0) ? "" : name.substring(dot);
+	}
+
+	/**
+	 * @return the number of extensions known
+	 */
+	public static int size() {
+		return extensions.size();
+	}
+
+	private static ConcurrentHashMap<String, String> load() {
+		ConcurrentHashMap<String, String> loaded = new ConcurrentHashMap<String, String>();
+		if (!storeFile.exists()) {
+			return loaded;
+		}
+
+		Properties properties = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(storeFile);
+			properties.load(in);
+			for (Iterator<Map.Entry<Object, Object>> iter = properties.entrySet().iterator(); iter.hasNext(); ) {
+				Map.Entry<Object, Object> entry = iter.next();
+				loaded.put((String) entry.getKey(), (String) entry.getValue());
+			}
+			mLogger.info("Loaded " + loaded.size() + " asset extensions from " + storeFile.getAbsolutePath());
+		}
+		catch (IOException e) {
+			mLogger.warn("Unable to read asset extensions from " + storeFile.getAbsolutePath() + " : " + e.getMessage());
+		}
+		finally {
+			close(in);
+		}
+		return loaded;
+	}
+
+	/**
+	 * Writes the map now if it has changed since it was last written, for when the web application is stopped
+	 */
+	public static void flush() {
+		if (saveScheduled.compareAndSet(true, false)) {
+			save();
+		}
+	}
+
+	private static void scheduleSave() {
+		if (saveScheduled.compareAndSet(false, true)) {
+			// extensions tend to arrive together, when a page of new assets is first rendered
+			MediaBinWorkQueue.schedule(new Runnable() {
+				public void run() {
+					saveScheduled.set(false);
+					save();
+				}
+			}, SAVE_DELAY);
+		}
+	}
+
+	private static synchronized void save() {
+		Properties properties = new Properties();
+		properties.putAll(extensions);
+
+		File parentDir = storeFile.getAbsoluteFile().getParentFile();
+		File tempFile = null;
+		OutputStream out = null;
+		try {
+			if (!parentDir.exists() && !parentDir.mkdirs()) {
+				throw new IOException("Unable to create directory " + parentDir.getAbsolutePath());
+			}
+			// written to a temporary file and renamed, so a crash never leaves a truncated file
+			tempFile = File.createTempFile(storeFile.getName() + ".", null, parentDir);
+			out = new FileOutputStream(tempFile);
+			properties.store(out, "MediaBin asset id to file extension");
+			out.close();
+			out = null;
+			if (!tempFile.renameTo(storeFile) && !(storeFile.delete() && tempFile.renameTo(storeFile))) {
+				throw new IOException("Unable to rename " + tempFile.getAbsolutePath());
+			}
+			if (mLogger.isDebugEnabled()) {
+				mLogger.debug("Saved " + properties.size() + " asset extensions to " + storeFile.getAbsolutePath());
+			}
+		}
+		catch (IOException e) {
+			mLogger.warn("Unable to save asset extensions to " + storeFile.getAbsolutePath() + " : " + e.getMessage());
+			close(out);
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+	}
+
+	private static void close(InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	private static void close(OutputStream out) {
+		if (out != null) {
+			try {
+				out.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+}
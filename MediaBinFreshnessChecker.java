@@ -0,0 +1,266 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.eu.interflow.livesite.mediabin.MediaBinWorkQueue.Priority;
+import com.eu.interflow.livesite.mediabin.requests.MediaBinTransformationRequest;
+import com.mediabin.www.MBAsset;
+
+/**
+ * Checks whether imported files are still up to date with MediaBin, in batches.
+ *
+ * Files whose asset has no unexpired entry in the MediaBinRefreshCache are collected for
+ * Settings.getFreshnessBatchWindow() milliseconds (or until Settings.getFreshnessBatchSize()
+ * files are waiting), then the assets are looked up in one pass over a single MediaBin
+ * connection. The MediaBinRefreshCache is updated for every asset and only the files
+ * that are older than their asset are queued for transformation.
+ */
+public class MediaBinFreshnessChecker {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinFreshnessChecker.class);
+
+	private static int batchWindow = Settings.getFreshnessBatchWindow();
+
+	private static int batchSize = Settings.getFreshnessBatchSize();
+
+	/**
+	 * All the checks waiting or in a running batch, keyed by import key, so a file is only checked once at a time
+	 */
+	private static ConcurrentHashMap<String, FreshnessCheck> outstanding = new ConcurrentHashMap<String, FreshnessCheck>();
+
+	/**
+	 * The checks waiting for the next batch
+	 */
+	private static ConcurrentLinkedQueue<FreshnessCheck> waiting = new ConcurrentLinkedQueue<FreshnessCheck>();
+
+	private static AtomicInteger waitingCount = new AtomicInteger();
+
+	private static AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	private static Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Adds an imported file to the next batch of checks, unless it is already waiting to be checked
+	 *
+	 * @param check	the file to check
+	 */
+	public static void check(FreshnessCheck check) {
+		if (outstanding.putIfAbsent(check.importKey, check) != null) {
+			return;
+		}
+
+		waiting.add(check);
+		if (waitingCount.incrementAndGet() >= batchSize) {
+			flush();
+		}
+		else if (flushScheduled.compareAndSet(false, true)) {
+			MediaBinWorkQueue.schedule(flushTask, batchWindow);
+		}
+	}
+
+	/**
+	 * Queues all the waiting checks on the MediaBinWorkQueue, in batches of at most Settings.getFreshnessBatchSize()
+	 */
+	private static void flush() {
+		flushScheduled.set(false);
+
+		List<FreshnessCheck> batch = new ArrayList<FreshnessCheck>();
+		FreshnessCheck check;
+		while ((check = waiting.poll()) != null) {
+			waitingCount.decrementAndGet();
+			batch.add(check);
+			if (batch.size() >= batchSize) {
+				queueBatch(batch);
+				batch = new ArrayList<FreshnessCheck>();
+			}
+		}
+		if (!batch.isEmpty()) {
+			queueBatch(batch);
+		}
+	}
+
+	private static void queueBatch(List<FreshnessCheck> batch) {
+		try {
+			MediaBinWorkQueue.execute(new FreshnessBatch(batch), Priority.LOW);
+		}
+		catch (RejectedExecutionException e) {
+			// the next render of these files will ask again
+			mLogger.warn(e.getMessage() + " : dropped freshness check of " + batch.size() + " files");
+			release(batch);
+		}
+	}
+
+	private static void release(List<FreshnessCheck> batch) {
+		for (Iterator<FreshnessCheck> iter = batch.iterator(); iter.hasNext(); ) {
+			FreshnessCheck check = iter.next();
+			outstanding.remove(check.importKey, check);
+		}
+	}
+
+	/**
+	 * An imported file waiting to be checked, with everything needed to transform it again if it is out of date
+	 */
+	public static class FreshnessCheck {
+
+		final String importKey;
+		final String filePath;
+		final String assetId;
+		final String assetPath;
+		final String taskName;
+		final File file;
+		final File placeholderFile;
+		final HashMap txParams;
+
+		/**
+		 * @param importKey			the import key, see MediaBinClient.requestImportAsset()
+		 * @param filePath			the relative path of the imported file
+		 * @param assetId			the id of the asset the file was imported from
+		 * @param assetPath			optional, the path of the asset the file was imported from
+		 * @param taskName			the transformation task used to import the file
+		 * @param file				the imported file
+		 * @param placeholderFile	the placeholder file used while the file is transformed
+		 * @param txParams			the runtime parameters of the transformation
+		 */
+		public FreshnessCheck(String importKey, String filePath, String assetId, String assetPath, String taskName, File file, File placeholderFile, HashMap txParams) {
+			this.importKey = importKey;
+			this.filePath = filePath;
+			this.assetId = assetId;
+			this.assetPath = assetPath;
+			this.taskName = taskName;
+			this.file = file;
+			this.placeholderFile = placeholderFile;
+			this.txParams = txParams;
+		}
+
+	}
+
+	/**
+	 * Looks up every asset of a batch over one MediaBin connection
+	 */
+	private static class FreshnessBatch implements Runnable {
+
+		private final List<FreshnessCheck> batch;
+
+		FreshnessBatch(List<FreshnessCheck> batch) {
+			this.batch = batch;
+		}
+
+		public void run() {
+			try {
+				// group the files by asset, so each asset is only looked up once
+				Map<String, List<FreshnessCheck>> assets = new LinkedHashMap<String, List<FreshnessCheck>>();
+				for (Iterator<FreshnessCheck> iter = batch.iterator(); iter.hasNext(); ) {
+					FreshnessCheck check = iter.next();
+					List<FreshnessCheck> checks = assets.get(check.assetId);
+					if (checks == null) {
+						checks = new ArrayList<FreshnessCheck>();
+						assets.put(check.assetId, checks);
+					}
+					checks.add(check);
+				}
+
+				if (mLogger.isDebugEnabled()) {
+					mLogger.debug("Checking freshness of " + batch.size() + " files from " + assets.size() + " assets");
+				}
+
+				MediaBinBaseRequest connection = new MediaBinBaseRequest();
+				try {
+					checkAssets(connection, assets);
+				}
+				finally {
+					connection.releaseConnection();
+				}
+			}
+			catch (MediaBinRequestException e) {
+				mLogger.error("Unable to check freshness of " + batch.size() + " files : " + e.getMessage(), e);
+			}
+			finally {
+				release(batch);
+			}
+		}
+
+		/**
+		 * @return true if the file is named "original" plus the extension of the asset, as it has no asset path to be named after
+		 */
+		private boolean isNamedByExtension(FreshnessCheck check) {
+			return "(None)".equals(check.taskName) && (check.assetPath == null || check.assetPath.length() == 0);
+		}
+
+		private void checkAssets(MediaBinBaseRequest connection, Map<String, List<FreshnessCheck>> assets) {
+			for (Iterator<Map.Entry<String, List<FreshnessCheck>>> iter = assets.entrySet().iterator(); iter.hasNext(); ) {
+				Map.Entry<String, List<FreshnessCheck>> entry = iter.next();
+				List<FreshnessCheck> checks = entry.getValue();
+				String assetId = entry.getKey();
+
+				MBAsset asset;
+				long lastModifiedInMediaBin;
+				try {
+					asset = connection.getAsset(assetId, checks.get(0).assetPath, false);
+					lastModifiedInMediaBin = MediaBinRequestUtils.getModifiedTime(asset);
+				}
+				catch (Exception e) {
+					// leave the files as they are, the next render will ask again
+					mLogger.warn("Unable to check freshness of asset '" + assetId + "' : " + e.getMessage());
+					continue;
+				}
+
+				MediaBinRefreshCache.setModifiedTime(assetId, lastModifiedInMediaBin);
+
+				// files named with the old extension of an asset that has changed type are left, the next render imports the new name
+				String oldExt = MediaBinExtensionCache.get(assetId);
+				if (oldExt != null && !oldExt.equals(MediaBinExtensionCache.extensionOf(asset.getMName()))) {
+					mLogger.info("Asset '" + assetId + "' has changed type in MediaBin, now " + asset.getMName());
+					MediaBinExtensionCache.put(assetId, MediaBinExtensionCache.extensionOf(asset.getMName()));
+				}
+				else {
+					oldExt = null;
+				}
+
+				for (Iterator<FreshnessCheck> checkIter = checks.iterator(); checkIter.hasNext(); ) {
+					FreshnessCheck check = checkIter.next();
+					if (oldExt != null && isNamedByExtension(check) && check.file.getName().endsWith(oldExt)) {
+						continue;
+					}
+					if (check.file.lastModified() < lastModifiedInMediaBin) {
+						mLogger.info("Asset '" + assetId + "' has changed in MediaBin, transforming again : " + check.filePath);
+						try {
+							MediaBinImportRegistry.submit(
+									check.importKey, check.filePath,
+									new MediaBinImportRequest(
+											new MediaBinTransformationRequest(check.assetId, check.assetPath, check.taskName, check.file, check.placeholderFile, check.txParams),
+											check.file, check.placeholderFile, check.assetId),
+									Priority.NORMAL, null
+							);
+						}
+						catch (MediaBinRequestException e) {
+							mLogger.error("Unable to transform '" + check.filePath + "' again : " + e.getMessage(), e);
+						}
+						catch (RejectedExecutionException e) {
+							mLogger.warn(e.getMessage() + " : " + check.filePath);
+						}
+					}
+				}
+			}
+		}
+
+	}
+
+}
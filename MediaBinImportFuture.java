@@ -0,0 +1,253 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.eu.interflow.livesite.mediabin.MediaBinImportRegistry.PendingImport;
+
+/**
+ * The result of one transformation requested through MediaBinClient.importAssetAsync() or
+ * importSourceAssetsAsync(), which completes with the imported file once it exists.
+ *
+ * The URL of the file is known straight away, so a page can be rendered with it while a caller
+ * that needs the file itself, such as PDF generation, waits on get(). Imports run by this JVM
+ * complete as soon as the file has been renamed into place. Imports run by another JVM sharing
+ * the import directory are waited for by checking for the file, for as long as its placeholder
+ * file exists and no longer than Settings.getImportWaitTimeout(). A file that nothing is importing,
+ * such as one whose import the work queue rejected, fails straight away.
+ *
+ * Cancelling a future only stops this caller waiting, the import carries on for everyone else,
+ * so cancel() always returns false. isCancelled() is true when the import itself was cancelled,
+ * which is when get() throws CancellationException.
+ */
+public abstract class MediaBinImportFuture implements Future<File> {
+
+	private static final long POLL_INTERVAL = 250; // time in milliseconds
+
+	private static long maxWaitMillis = Settings.getImportWaitTimeout();
+
+	private final String fileURL;
+
+	protected MediaBinImportFuture(String fileURL) {
+		this.fileURL = fileURL;
+	}
+
+	/**
+	 * @return the URL the imported file is, or will be, accessible over
+	 */
+	public String getFileURL() {
+		return fileURL;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public File get() throws InterruptedException, ExecutionException {
+		try {
+			return get(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	/**
+	 * @param fileURL	the URL of the file
+	 * @param file		the imported file, which already exists
+	 * @return a future that has completed
+	 */
+	static MediaBinImportFuture completed(String fileURL, File file) {
+		return new CompletedImport(fileURL, file);
+	}
+
+	/**
+	 * @param fileURL	the URL of the file
+	 * @param pending	the import this JVM is running for the file
+	 * @param file		the file being imported, used when the import cannot say which file it wrote
+	 * @return a future that completes with the import
+	 */
+	static MediaBinImportFuture pending(String fileURL, PendingImport pending, File file) {
+		return new PendingImportFuture(fileURL, pending, file);
+	}
+
+	/**
+	 * @param fileURL			the URL of the file
+	 * @param file				the file being imported by another JVM, or that will be imported on a later render
+	 * @param placeholderFile	the placeholder file of the import, which exists while another JVM is importing the file
+	 * @return a future that completes when the file appears
+	 */
+	static MediaBinImportFuture watching(String fileURL, File file, File placeholderFile) {
+		return new WatchedImport(fileURL, file, placeholderFile);
+	}
+
+	/**
+	 * Combines futures into one that completes when all of them have, with their files in the same order
+	 *
+	 * @param futures	the futures to combine
+	 * @return the combined future, which fails with the first of the futures that fails
+	 */
+	public static Future<List<File>> allOf(List<? extends Future<File>> futures) {
+		return new AllOf(futures);
+	}
+
+	private static ExecutionException failed(String message) {
+		return new ExecutionException(new MediaBinRequestException(message));
+	}
+
+	private static class CompletedImport extends MediaBinImportFuture {
+
+		private final File file;
+
+		CompletedImport(String fileURL, File file) {
+			super(fileURL);
+			this.file = file;
+		}
+
+		public boolean isDone() {
+			return true;
+		}
+
+		public File get(long timeout, TimeUnit unit) {
+			return file;
+		}
+
+	}
+
+	private static class PendingImportFuture extends MediaBinImportFuture {
+
+		private final PendingImport pending;
+		private final File file;
+
+		PendingImportFuture(String fileURL, PendingImport pending, File file) {
+			super(fileURL);
+			this.pending = pending;
+			this.file = file;
+		}
+
+		public boolean isDone() {
+			return pending.isDone();
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return pending.isCancelled();
+		}
+
+		public File get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			pending.get(timeout, unit);
+			File imported = pending.getImportedFile();
+			if (imported == null) {
+				imported = file;
+			}
+			if (!imported.exists()) {
+				// the request completed without downloading anything, it will have logged why
+				throw failed("Import did not produce " + imported.getAbsolutePath());
+			}
+			return imported;
+		}
+
+	}
+
+	private static class WatchedImport extends MediaBinImportFuture {
+
+		private final File file;
+		private final File placeholderFile;
+		private final long giveUpAt = System.currentTimeMillis() + maxWaitMillis;
+
+		WatchedImport(String fileURL, File file, File placeholderFile) {
+			super(fileURL);
+			this.file = file;
+			this.placeholderFile = placeholderFile;
+		}
+
+		public boolean isDone() {
+			return file.exists() || !placeholderFile.exists() || System.currentTimeMillis() > giveUpAt;
+		}
+
+		public File get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			long deadline = deadline(timeout, unit);
+			while (!file.exists()) {
+				if (!placeholderFile.exists()) {
+					// checked after the file, as the placeholder is removed once the file is in place
+					if (file.exists()) {
+						break;
+					}
+					throw failed("Nothing is importing " + file.getAbsolutePath());
+				}
+				long now = System.currentTimeMillis();
+				if (now > giveUpAt) {
+					throw failed("Gave up waiting for " + file.getAbsolutePath());
+				}
+				if (now > deadline) {
+					throw new TimeoutException("Waiting for " + file.getAbsolutePath());
+				}
+				Thread.sleep(Math.min(POLL_INTERVAL, deadline - now + 1));
+			}
+			return file;
+		}
+
+	}
+
+	private static class AllOf implements Future<List<File>> {
+
+		private final List<? extends Future<File>> futures;
+
+		AllOf(List<? extends Future<File>> futures) {
+			this.futures = futures;
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			for (Iterator<? extends Future<File>> iter = futures.iterator(); iter.hasNext(); ) {
+				if (iter.next().isCancelled()) return true;
+			}
+			return false;
+		}
+
+		public boolean isDone() {
+			for (Iterator<? extends Future<File>> iter = futures.iterator(); iter.hasNext(); ) {
+				if (!iter.next().isDone()) return false;
+			}
+			return true;
+		}
+
+		public List<File> get() throws InterruptedException, ExecutionException {
+			List<File> files = new ArrayList<File>(futures.size());
+			for (Iterator<? extends Future<File>> iter = futures.iterator(); iter.hasNext(); ) {
+				files.add(iter.next().get());
+			}
+			return files;
+		}
+
+		public List<File> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			long deadline = deadline(timeout, unit);
+			List<File> files = new ArrayList<File>(futures.size());
+			for (Iterator<? extends Future<File>> iter = futures.iterator(); iter.hasNext(); ) {
+				files.add(iter.next().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+			}
+			return files;
+		}
+
+	}
+
+	private static long deadline(long timeout, TimeUnit unit) {
+		long millis = unit.toMillis(timeout);
+		long now = System.currentTimeMillis();
+		return (millis > Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + millis;
+	}
+
+}
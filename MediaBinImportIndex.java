@@ -0,0 +1,380 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * In-memory index of the files in the import directories, so that the render path can decide
+ * whether an asset needs importing without a filesystem call for every asset on every render.
+ *
+ * Each import directory is walked once, in the background, the first time it is used. Files
+ * imported by this JVM are recorded as soon as they are renamed into place. Everything else,
+ * such as files imported by other JVMs sharing the directory, is picked up by revalidation: an
+ * entry older than Settings.getImportIndexRevalidateInterval() is still answered from memory,
+ * but is checked against the filesystem again in the background. Files that are not in the
+ * index yet are checked on the calling thread.
+ *
+ * A file recorded as missing is always checked on the calling thread by lastModified() and
+ * list(), as their callers go on to import the file. Answering them from memory would import
+ * files again that another JVM has imported since they were last checked.
+ */
+public class MediaBinImportIndex {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinImportIndex.class);
+
+	private static long revalidateNanos = Settings.getImportIndexRevalidateInterval() * 1000000L;
+
+	private static int maxEntries = Settings.getImportIndexMaxEntries();
+
+	private static ConcurrentHashMap<String, FileState> files = new ConcurrentHashMap<String, FileState>();
+
+	private static ConcurrentHashMap<String, Listing> listings = new ConcurrentHashMap<String, Listing>();
+
+	/**
+	 * The paths with a revalidation queued, so that each is only queued once
+	 */
+	private static ConcurrentHashMap<String, Boolean> revalidating = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * The import directories that have been walked, or are being walked
+	 */
+	private static ConcurrentHashMap<String, Boolean> roots = new ConcurrentHashMap<String, Boolean>();
+
+	private static ExecutorService executor = Executors.newSingleThreadExecutor(new MediaBinWorkQueue.NamedThreadFactory("MediaBin-import-index"));
+
+	/**
+	 * Stops the thread that fills the index, for when the web application is stopped
+	 */
+	public static void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Fills the index from an import directory, in the background, unless that has already been done
+	 *
+	 * @param root	the import directory
+	 */
+	public static void warm(final File root) {
+		if (roots.putIfAbsent(root.getPath(), Boolean.TRUE) != null) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				int count = walk(root);
+				mLogger.info("Indexed " + count + " imported files in " + root.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + "ms");
+			}
+		});
+	}
+
+	/**
+	 * @param file	an imported file
+	 * @return true if the file exists
+	 */
+	public static boolean exists(File file) {
+		return getState(file).exists;
+	}
+
+	/**
+	 * @param file	an imported file
+	 * @return the last modified time of the file, or 0 if it does not exist, which is always checked against the filesystem
+	 */
+	public static long lastModified(File file) {
+		String path = file.getPath();
+		FileState state = files.get(path);
+		if (state == null || !state.exists) {
+			state = readState(file);
+			put(files, path, state);
+		}
+		else if (isExpired(state.checkedAt)) {
+			revalidate(file, false);
+		}
+		return state.lastModified;
+	}
+
+	/**
+	 * Lists the files in an import directory whose names start with the passed prefix
+	 *
+	 * @param dir		the directory
+	 * @param prefix	the file name prefix
+	 * @return the matching file names, or null if the directory does not exist. When nothing matches the 
+	 *         directory is always read again
+	 */
+	public static String[] list(File dir, String prefix) {
+		String path = dir.getPath();
+		Listing listing = listings.get(path);
+		boolean read = false;
+		if (listing == null) {
+			listing = readListing(dir);
+			put(listings, path, listing);
+			read = true;
+		}
+		else if (isExpired(listing.checkedAt)) {
+			revalidate(dir, true);
+		}
+
+		String[] matches = match(listing, prefix);
+		if ((matches == null || matches.length == 0) && !read) {
+			listing = readListing(dir);
+			put(listings, path, listing);
+			matches = match(listing, prefix);
+		}
+		return matches;
+	}
+
+	private static String[] match(Listing listing, String prefix) {
+		if (listing.names == null) {
+			return null;
+		}
+		List<String> matches = new ArrayList<String>();
+		for (String name : listing.names) {
+			if (name.startsWith(prefix)) {
+				matches.add(name);
+			}
+		}
+		return matches.toArray(new String[matches.size()]);
+	}
+
+	/**
+	 * Records that a file has been written, or has been removed
+	 *
+	 * @param file	the file
+	 */
+	public static void update(File file) {
+		FileState state = readState(file);
+		put(files, file.getPath(), state);
+
+		// keep the listing of the directory in step, rather than reading it again
+		File dir = file.getParentFile();
+		Listing listing = (dir == null) ? null : listings.get(dir.getPath());
+		if (listing != null) {
+			String name = file.getName();
+			List<String> names = (listing.names == null) ? new ArrayList<String>() : new ArrayList<String>(Arrays.asList(listing.names));
+			boolean changed = state.exists ? (!names.contains(name) && names.add(name)) : names.remove(name);
+			if (changed) {
+				listings.replace(dir.getPath(), listing, new Listing(names.toArray(new String[names.size()])));
+			}
+		}
+	}
+
+	/**
+	 * Removes everything from the index, the import directories are walked again when they are next used
+	 */
+	public static void invalidateAll() {
+		roots.clear();
+		files.clear();
+		listings.clear();
+	}
+
+	/**
+	 * Writes the index, so that it can be loaded again after a restart
+	 *
+	 * @param out	the stream to write to
+	 * @throws IOException when the stream cannot be written
+	 */
+	static void save(DataOutputStream out) throws IOException {
+		List<String> rootPaths = new ArrayList<String>(roots.keySet());
+		out.writeInt(rootPaths.size());
+		for (String root : rootPaths) {
+			out.writeUTF(root);
+		}
+
+		List<Map.Entry<String, FileState>> fileEntries = new ArrayList<Map.Entry<String, FileState>>(files.entrySet());
+		out.writeInt(fileEntries.size());
+		for (Map.Entry<String, FileState> entry : fileEntries) {
+			out.writeUTF(entry.getKey());
+			out.writeBoolean(entry.getValue().exists);
+			out.writeLong(entry.getValue().lastModified);
+		}
+
+		List<Map.Entry<String, Listing>> listingEntries = new ArrayList<Map.Entry<String, Listing>>(listings.entrySet());
+		out.writeInt(listingEntries.size());
+		for (Map.Entry<String, Listing> entry : listingEntries) {
+			String[] names = entry.getValue().names;
+			out.writeUTF(entry.getKey());
+			out.writeInt((names == null) ? -1 : names.length);
+			if (names != null) {
+				for (String name : names) {
+					out.writeUTF(name);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads an index written by save(). The entries are answered from memory straight away, but are all 
+	 * checked against the filesystem again, in the background, the first time they are used
+	 *
+	 * @param in	the stream to read from
+	 * @throws IOException when the stream cannot be read
+	 */
+	static void load(DataInputStream in) throws IOException {
+		long expired = System.nanoTime() - revalidateNanos - 1;
+
+		for (int i = in.readInt(); i > 0; i--) {
+			roots.put(in.readUTF(), Boolean.TRUE);
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			String path = in.readUTF();
+			boolean exists = in.readBoolean();
+			long lastModified = in.readLong();
+			put(files, path, new FileState(exists, lastModified, expired));
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			String path = in.readUTF();
+			int count = in.readInt();
+			String[] names = (count < 0) ? null : new String[count];
+			for (int j = 0; j < count; j++) {
+				names[j] = in.readUTF();
+			}
+			put(listings, path, new Listing(names, expired));
+		}
+	}
+
+	/**
+	 * @return the number of files in the index
+	 */
+	public static int size() {
+		return files.size();
+	}
+
+	private static FileState getState(File file) {
+		String path = file.getPath();
+		FileState state = files.get(path);
+		if (state == null) {
+			state = readState(file);
+			put(files, path, state);
+		}
+		else if (isExpired(state.checkedAt)) {
+			revalidate(file, false);
+		}
+		return state;
+	}
+
+	private static void revalidate(final File file, final boolean isDir) {
+		final String key = (isDir ? "d:" : "f:") + file.getPath();
+		if (revalidating.putIfAbsent(key, Boolean.TRUE) != null) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					if (isDir) {
+						put(listings, file.getPath(), readListing(file));
+					}
+					else {
+						put(files, file.getPath(), readState(file));
+					}
+				}
+				finally {
+					revalidating.remove(key);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the number of files found under the directory
+	 */
+	private static int walk(File dir) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return 0;
+		}
+
+		int count = 0;
+		List<String> names = new ArrayList<String>(children.length);
+		for (File child : children) {
+			if (child.isDirectory()) {
+				count += walk(child);
+			}
+			else {
+				put(files, child.getPath(), new FileState(true, child.lastModified()));
+				count++;
+			}
+			names.add(child.getName());
+		}
+		put(listings, dir.getPath(), new Listing(names.toArray(new String[names.size()])));
+		return count;
+	}
+
+	private static FileState readState(File file) {
+		long lastModified = file.lastModified();
+		// lastModified() is 0 when the file does not exist, saving a separate exists() call
+		return (lastModified == 0 && !file.exists()) ? new FileState(false, 0) : new FileState(true, lastModified);
+	}
+
+	private static Listing readListing(File dir) {
+		return new Listing(dir.list());
+	}
+
+	private static boolean isExpired(long checkedAt) {
+		return System.nanoTime() - checkedAt > revalidateNanos;
+	}
+
+	private static <V> void put(ConcurrentHashMap<String, V> map, String key, V value) {
+		if (map.size() >= maxEntries && !map.containsKey(key)) {
+			// make room for a quarter of the entries, they are read again from the filesystem on their next use
+			int lowWater = maxEntries - maxEntries / 4;
+			if (mLogger.isDebugEnabled()) {
+				mLogger.debug("Import index full, dropping " + (map.size() - lowWater) + " of " + map.size() + " entries");
+			}
+			for (Iterator<String> iter = map.keySet().iterator(); iter.hasNext() && map.size() > lowWater; ) {
+				iter.next();
+				iter.remove();
+			}
+		}
+		map.put(key, value);
+	}
+
+	private static class FileState {
+
+		final boolean exists;
+		final long lastModified;
+		final long checkedAt;
+
+		FileState(boolean exists, long lastModified) {
+			this(exists, lastModified, System.nanoTime());
+		}
+
+		FileState(boolean exists, long lastModified, long checkedAt) {
+			this.exists = exists;
+			this.lastModified = lastModified;
+			this.checkedAt = checkedAt;
+		}
+
+	}
+
+	private static class Listing {
+
+		/**
+		 * The names of the files in the directory, or null if it does not exist
+		 */
+		final String[] names;
+		final long checkedAt;
+
+		Listing(String[] names) {
+			this(names, System.nanoTime());
+		}
+
+		Listing(String[] names, long checkedAt) {
+			this.names = names;
+			this.checkedAt = checkedAt;
+		}
+
+	}
+
+}
@@ -0,0 +1,160 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.eu.interflow.livesite.mediabin.MediaBinWorkQueue.Priority;
+
+/**
+ * In-process registry of the imports that have been handed to the MediaBinWorkQueue and have not yet
+ * completed, keyed by the file they import to.
+ *
+ * Only one import per file is ever pending in this JVM, later callers attach to the pending
+ * import instead of submitting another request. The on-disk placeholder files are still
+ * written, but are only needed to coordinate with other JVMs sharing the import directory.
+ */
+public class MediaBinImportRegistry {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinImportRegistry.class);
+
+	private static ConcurrentHashMap<String, PendingImport> pending = new ConcurrentHashMap<String, PendingImport>();
+
+	/**
+	 * @param key	the import key, see MediaBinClient.requestImportAsset()
+	 * @return the pending import for the key, or null if there is none
+	 */
+	public static PendingImport getPending(String key) {
+		return pending.get(key);
+	}
+
+	/**
+	 * Queues the request on the MediaBinWorkQueue, unless an import for the same key is already pending
+	 *
+	 * @param key				the import key
+	 * @param filePath			the relative path of the file the request imports to
+	 * @param request			the request to run
+	 * @param priority			the priority to queue the request with
+	 * @param placeholderFile	the placeholder file created for this import, deleted if the import is cancelled, may be null
+	 * @return the pending import, which is not the one for the passed request when another import was already pending
+	 * @throws RejectedExecutionException when the queue does not accept the request
+	 */
+	public static PendingImport submit(String key, String filePath, Runnable request, Priority priority, File placeholderFile) {
+		return submit(key, filePath, request, priority, placeholderFile, false);
+	}
+
+	/**
+	 * Queues the request on the MediaBinWorkQueue, unless an import for the same key is already pending
+	 *
+	 * @param key				the import key
+	 * @param filePath			the relative path of the file the request imports to
+	 * @param request			the request to run
+	 * @param priority			the priority to queue the request with
+	 * @param placeholderFile	the placeholder file created for this import, deleted if the import is cancelled, may be null
+	 * @param callerMayRun		true if the request may be run on the calling thread when the queue is full, see MediaBinWorkQueue.execute()
+	 * @return the pending import, which is not the one for the passed request when another import was already pending
+	 * @throws RejectedExecutionException when the queue does not accept the request
+	 */
+	public static PendingImport submit(String key, String filePath, Runnable request, Priority priority, File placeholderFile, boolean callerMayRun) {
+		PendingImport task = new PendingImport(key, filePath, request, placeholderFile);
+		PendingImport existing = pending.putIfAbsent(key, task);
+		if (existing != null) {
+			if (mLogger.isDebugEnabled()) {
+				mLogger.debug("Import already pending, attaching to it : " + key);
+			}
+			task.releaseConnection();
+			return existing;
+		}
+
+		try {
+			MediaBinWorkQueue.execute(task, priority, callerMayRun);
+		}
+		catch (RejectedExecutionException e) {
+			task.cancel(false);
+			throw e;
+		}
+		return task;
+	}
+
+	/**
+	 * @return the number of imports currently pending
+	 */
+	public static int size() {
+		return pending.size();
+	}
+
+	/**
+	 * An import that has been submitted and not yet completed. The result of the future
+	 * is the relative path of the imported file.
+	 */
+	public static class PendingImport extends FutureTask<String> {
+
+		private final String key;
+		private final String filePath;
+		private final Runnable request;
+		private final File placeholderFile;
+
+		PendingImport(String key, String filePath, Runnable request, File placeholderFile) {
+			super(request, filePath);
+			this.key = key;
+			this.filePath = filePath;
+			this.request = request;
+			this.placeholderFile = placeholderFile;
+		}
+
+		/**
+		 * @return the relative path of the file being imported
+		 */
+		public String getFilePath() {
+			return filePath;
+		}
+
+		/**
+		 * @return the file the request imports to, which may have had its extension added since it was submitted, 
+		 *         or null if the request does not say
+		 */
+		public File getImportedFile() {
+			return (request instanceof MediaBinImportRequest) ? ((MediaBinImportRequest) request).getFile() : null;
+		}
+
+		/**
+		 * Gives the MediaBin connection of the request back, whether or not the request ran
+		 */
+		private void releaseConnection() {
+			if (request instanceof MediaBinImportRequest) {
+				((MediaBinImportRequest) request).releaseConnection();
+			}
+			else if (request instanceof MediaBinBaseRequest) {
+				((MediaBinBaseRequest) request).releaseConnection();
+			}
+		}
+
+		@Override
+		protected void done() {
+			pending.remove(key, this);
+			releaseConnection();
+			if (isCancelled()) {
+				// the request never ran, so remove the placeholder or other JVMs will wait for it to go stale
+				if (placeholderFile != null && placeholderFile.exists() && !placeholderFile.delete()) {
+					mLogger.warn("Unable to delete placeholder file of cancelled import : " + placeholderFile.getAbsolutePath());
+				}
+			}
+			else {
+				try {
+					get();
+				} catch (ExecutionException e) {
+					mLogger.error("Import failed : " + filePath, e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+	}
+
+}
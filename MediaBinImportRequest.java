@@ -0,0 +1,207 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.eu.interflow.livesite.mediabin.requests.MediaBinTransformationRequest;
+import com.mediabin.www.MBAsset;
+
+/**
+ * Runs a MediaBinTransformationRequest so that the imported file is downloaded into a temporary
+ * file in the same directory and then renamed into place.
+ *
+ * Readers of the import directory therefore only ever see complete files, and an existing file
+ * stays in use until its replacement has been downloaded. The transformation request removes its
+ * placeholder file once the download has finished, so the temporary file is only published when
+ * run() returned and the placeholder has gone. A placeholder is created for the request if the
+ * render did not create one, as happens when an existing file is transformed again.
+ *
+ * When the render could not read the extension of the file, it is read from the name of the asset
+ * in MediaBin before the download starts, and recorded in the MediaBinExtensionCache.
+ */
+public class MediaBinImportRequest implements Runnable {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinImportRequest.class);
+
+	private final MediaBinTransformationRequest request;
+	private volatile File file;
+	private final File placeholderFile;
+	private final String assetId;
+	private final String assetPath;
+	private final boolean deriveExtension;
+	private String extension = null;
+
+	/**
+	 * System.nanoTime() when the request was built, which is just before it is submitted
+	 */
+	private final long createdAt = System.nanoTime();
+
+	/**
+	 * @param request			the transformation request, its local file is replaced by a temporary file when it is run
+	 * @param file				the file the asset is imported to
+	 * @param placeholderFile	the placeholder file the request was built with
+	 * @param assetId			the asset id
+	 */
+	public MediaBinImportRequest(MediaBinTransformationRequest request, File file, File placeholderFile, String assetId) {
+		this(request, file, placeholderFile, assetId, null, false);
+	}
+
+	/**
+	 * @param request			the transformation request, its local file is replaced by a temporary file when it is run
+	 * @param file				the file the asset is imported to, without its extension if deriveExtension is true
+	 * @param placeholderFile	the placeholder file the request was built with
+	 * @param assetId			the asset id
+	 * @param assetPath			the asset path, used to read the extension if the asset id is not found
+	 * @param deriveExtension	true to add the extension of the asset in MediaBin to the file
+	 */
+	public MediaBinImportRequest(MediaBinTransformationRequest request, File file, File placeholderFile, String assetId, String assetPath, boolean deriveExtension) {
+		this.request = request;
+		this.file = file;
+		this.placeholderFile = placeholderFile;
+		this.assetId = assetId;
+		this.assetPath = assetPath;
+		this.deriveExtension = deriveExtension;
+	}
+
+	/**
+	 * @return the file the asset is imported to, which only has its extension once the request has started
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	public void run() {
+		boolean transformed = false;
+		try {
+			transformed = runImport();
+		}
+		finally {
+			// the connection is only borrowed once the request is taken off the work queue
+			// a transformation that did not complete may have failed on the connection, which is not used again
+			if (transformed) {
+				request.releaseConnection();
+			}
+			else {
+				request.invalidateConnection();
+			}
+		}
+	}
+
+	/**
+	 * @return false if the transformation was run and did not complete, which may have been a failure of the connection
+	 */
+	private boolean runImport() {
+		if (deriveExtension && !addExtension()) {
+			// a lookup that failed on the connection has already marked it to be thrown away
+			// the placeholder created by the render would report the asset as ready, and block another import
+			placeholderFile.delete();
+			return true;
+		}
+
+		try {
+			// after addExtension(), which may have had the connection it used thrown away
+			request.connect();
+		}
+		catch (MediaBinRequestException e) {
+			mLogger.error("Unable to import " + file.getAbsolutePath() + " : " + e.getMessage(), e);
+			placeholderFile.delete();
+			return false;
+		}
+
+		boolean createdPlaceholder = false;
+		if (!placeholderFile.exists()) {
+			if (!MediaBinClient.createPlaceholderFile(placeholderFile)) {
+				mLogger.error("Unable to import " + file.getAbsolutePath() + " : placeholder file could not be created");
+				return true;
+			}
+			createdPlaceholder = true;
+		}
+
+		File tempFile;
+		try {
+			tempFile = MediaBinClient.createTempFile(file);
+		}
+		catch (IOException e) {
+			mLogger.error("Unable to import " + file.getAbsolutePath() + " : " + e.getMessage(), e);
+			if (createdPlaceholder) {
+				placeholderFile.delete();
+			}
+			return true;
+		}
+
+		boolean completed = false;
+		long start = System.nanoTime();
+		try {
+			request.setLocalFile(tempFile);
+			request.run();
+			// the request only removes the placeholder once it has the whole file
+			completed = !placeholderFile.exists();
+		}
+		finally {
+			MediaBinMetrics.time(MediaBinMetrics.SOAP_TRANSFORMATION, start);
+			long length = tempFile.length();
+			if (completed && length > 0) {
+				if (MediaBinClient.publishTempFile(tempFile, file)) {
+					MediaBinMetrics.download(length, start);
+					MediaBinMetrics.time(MediaBinMetrics.IMPORT_TIME_TO_READY, createdAt);
+					if (extension != null) {
+						// only now, as renders that know the extension look for the file under its full name
+						MediaBinExtensionCache.put(assetId, extension);
+					}
+					if (mLogger.isDebugEnabled()) {
+						mLogger.debug("Imported " + file.getAbsolutePath());
+					}
+				}
+			}
+			else {
+				// nothing (or not everything) was downloaded, the current file is left alone
+				mLogger.warn("Transformation did not complete, not importing " + file.getAbsolutePath());
+				tempFile.delete();
+				if (createdPlaceholder) {
+					placeholderFile.delete();
+				}
+			}
+		}
+		return completed;
+	}
+
+	/**
+	 * Adds the extension of the asset in MediaBin to the file
+	 *
+	 * @return false if the asset could not be read
+	 */
+	private boolean addExtension() {
+		try {
+			MBAsset mbAsset = request.getAsset(assetId, assetPath);
+			String ext = MediaBinExtensionCache.extensionOf(mbAsset.getMName());
+			file = new File(file.getPath() + ext);
+			extension = ext;
+			return true;
+		}
+		catch (MediaBinRequestException e) {
+			mLogger.error("Error deriving file extension : " + e.getMessage(), e);
+		}
+		catch (RemoteException e) {
+			mLogger.error("Error deriving file extension : " + e.getMessage(), e);
+		}
+		MediaBinExtensionCache.lookupFailed(assetId);
+		return false;
+	}
+
+	/**
+	 * Gives the MediaBin connection of the request back, the request must not be run afterwards
+	 */
+	public void releaseConnection() {
+		request.releaseConnection();
+	}
+
+	@Override
+	public String toString() {
+		return "MediaBinImportRequest(" + file.getPath() + ")";
+	}
+
+}
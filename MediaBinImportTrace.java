@@ -0,0 +1,105 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * One record of what a call to MediaBinClient.importAsset() or importSourceAssets() did, for a
+ * sample of the calls, in place of the debug messages for every rule and element.
+ *
+ * One in every Settings.getTraceSampleRate() calls is traced, and its record is logged at info
+ * to this class's log when the call returns. When tracing is off, or the call is not sampled,
+ * start() returns null and nothing else is done. A trace is only used by the thread rendering the
+ * traced call.
+ */
+public class MediaBinImportTrace {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinImportTrace.class);
+
+	private static int sampleRate = Settings.getTraceSampleRate();
+
+	private static AtomicLong calls = new AtomicLong();
+
+	private final String operation;
+	private final String contentType;
+	private final String transformationContext;
+	private final long startedAt = System.nanoTime();
+
+	private int rules = 0;
+	private int elements = 0;
+	private int ready = 0;
+	private int requested = 0;
+	private int failed = 0;
+
+	/**
+	 * @param operation				the MediaBinClient method being traced
+	 * @param contentType			the DCR content type
+	 * @param transformationContext	the transformation context
+	 * @return the trace of this call, or null if it is not sampled
+	 */
+	public static MediaBinImportTrace start(String operation, String contentType, String transformationContext) {
+		if (sampleRate <= 0 || calls.incrementAndGet() % sampleRate != 0) {
+			return null;
+		}
+		return new MediaBinImportTrace(operation, contentType, transformationContext);
+	}
+
+	private MediaBinImportTrace(String operation, String contentType, String transformationContext) {
+		this.operation = operation;
+		this.contentType = contentType;
+		this.transformationContext = transformationContext;
+	}
+
+	/**
+	 * Records a transformation rule applied to the elements of an xpath
+	 *
+	 * @param elementCount	the number of elements the rule was applied to
+	 */
+	public void rule(int elementCount) {
+		rules++;
+		elements += elementCount;
+	}
+
+	/**
+	 * Records the outcome of an import
+	 *
+	 * @param isReady		true if the imported file was up to date, false if a transformation was requested
+	 */
+	public void result(boolean isReady) {
+		if (isReady) {
+			ready++;
+		}
+		else {
+			requested++;
+		}
+	}
+
+	/**
+	 * Records an import that could not be decided
+	 */
+	public void failed() {
+		failed++;
+	}
+
+	/**
+	 * Logs the record
+	 *
+	 * @param success	what the traced call returned
+	 */
+	public void finish(boolean success) {
+		mLogger.info(operation
+				+ " contentType=" + contentType
+				+ " transformationContext=" + transformationContext
+				+ " rules=" + rules
+				+ " elements=" + elements
+				+ " ready=" + ready
+				+ " requested=" + requested
+				+ " failed=" + failed
+				+ " success=" + success
+				+ " millis=" + ((System.nanoTime() - startedAt) / 1000000L)
+		);
+	}
+
+}
@@ -0,0 +1,283 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.eu.interflow.livesite.mediabin.MediaBinFreshnessChecker.FreshnessCheck;
+import com.mediabin.www.MBAsset;
+
+/**
+ * Serves streamed assets from the import directory when they have already been imported,
+ * so that a download does not hold a MediaBin connection for as long as the client takes
+ * to receive it.
+ *
+ * MediaBinClient registers every file it imports with a transformation that has no runtime
+ * parameters, which are the only imports that match what streamAsset() would fetch. Files
+ * are sent with FileChannel.transferTo() and conditional (If-None-Match, If-Modified-Since)
+ * and single byte range requests are supported. They are sent under the name of the asset in
+ * MediaBin, so a file is only served locally when that name is known.
+ */
+public class MediaBinLocalStreamer {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinLocalStreamer.class);
+
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+	private static int maxEntries = Settings.getLocalStreamerMaxEntries();
+
+	/**
+	 * The imported files, keyed by asset id and transformation task
+	 */
+	private static ConcurrentHashMap<String, FreshnessCheck> files = new ConcurrentHashMap<String, FreshnessCheck>();
+
+	/**
+	 * Records where an asset imported with a transformation that has no runtime parameters is stored
+	 *
+	 * @param file	the imported file, with everything needed to check it is up to date
+	 */
+	public static void register(FreshnessCheck file) {
+		String key = key(file.assetId, file.taskName);
+		FreshnessCheck current = files.get(key);
+		if (current != null && current.file.equals(file.file)) {
+			return;
+		}
+		files.put(key, file);
+		if (files.size() > maxEntries) {
+			// make room for a quarter of the files, they are registered again on their next render
+			int lowWater = maxEntries - maxEntries / 4;
+			for (Iterator<String> iter = files.keySet().iterator(); iter.hasNext() && files.size() > lowWater; ) {
+				if (!key.equals(iter.next())) {
+					iter.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param assetId			the asset id
+	 * @param transformation	the transformation task name
+	 * @return where the asset is imported to by the transformation, or null if that is not known
+	 */
+	static FreshnessCheck getImport(String assetId, String transformation) {
+		return files.get(key(assetId, transformation));
+	}
+
+	/**
+	 * Sends the imported copy of the asset to the response, if there is a complete one that is not known to be out of date
+	 *
+	 * @param assetId			the asset id to stream
+	 * @param transformation	the transformation task name
+	 * @param request			the request, used for conditional and range requests, may be null
+	 * @param response			the response to send the file to
+	 * @return true if the response has been sent, false if the asset must be fetched from MediaBin
+	 * @throws IOException when the file cannot be sent
+	 */
+	public static boolean stream(String assetId, String transformation, HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+		FreshnessCheck imported = files.get(key(assetId, transformation));
+		if (imported == null) {
+			return false;
+		}
+
+		File file = imported.file;
+		if (!isReady(imported)) {
+			return false;
+		}
+
+		long lastModified = file.lastModified();
+		long lastModifiedInMediaBin = MediaBinRefreshCache.getModifiedTime(assetId);
+		if (lastModifiedInMediaBin == 0) {
+			// not checked recently, serve it anyway (as the render path does) but have it checked
+			MediaBinFreshnessChecker.check(imported);
+		}
+		else if (lastModified < lastModifiedInMediaBin) {
+			return false;
+		}
+
+		String name = getAssetName(imported);
+		if (name == null) {
+			return false;
+		}
+
+		// opened before any header is set, so a file that has just been removed is left to MediaBin
+		FileInputStream in;
+		try {
+			in = new FileInputStream(file);
+		}
+		catch (FileNotFoundException e) {
+			return false;
+		}
+
+		try {
+			return stream(in, file, name, lastModified, request, response);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static boolean stream(FileInputStream in, File file, String name, long lastModified, HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+		if (mLogger.isDebugEnabled()) {
+			mLogger.debug("Streaming imported file " + file.getAbsolutePath() + " as " + name);
+		}
+
+		FileChannel channel = in.getChannel();
+		long length = channel.size();
+		String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+
+		response.setHeader("ETag", etag);
+		response.setDateHeader("Last-Modified", lastModified);
+		response.setHeader("Accept-Ranges", "bytes");
+
+		if (request != null && isNotModified(request, etag, lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+
+		long start = 0;
+		long end = length - 1;
+		String range = (request == null) ? null : request.getHeader("Range");
+		if (range != null && isRangeApplicable(request, etag)) {
+			long[] bounds = parseRange(range, length);
+			if (bounds == null) {
+				response.setHeader("Content-Range", "bytes */" + length);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return true;
+			}
+			if (bounds.length == 2) {
+				start = bounds[0];
+				end = bounds[1];
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+			}
+		}
+
+		String contentType = URLConnection.getFileNameMap().getContentTypeFor(file.getName());
+		response.setContentType((contentType == null) ? DEFAULT_CONTENT_TYPE : contentType);
+		response.setHeader("Content-Disposition", "attachment; filename=\"" + name + "\"");
+		response.setHeader("Content-Length", Long.toString(end - start + 1));
+
+		if (request != null && "HEAD".equals(request.getMethod())) {
+			return true;
+		}
+
+		WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+		long position = start;
+		while (position <= end) {
+			long sent = channel.transferTo(position, end - position + 1, out);
+			if (sent <= 0) {
+				// the file has been truncated since we looked at it
+				throw new IOException("Imported file changed while it was streamed : " + file.getAbsolutePath());
+			}
+			position += sent;
+		}
+		response.flushBuffer();
+
+		return true;
+	}
+
+	/**
+	 * @return the name of the asset in MediaBin, which is what it is streamed as, or null if it is not known
+	 */
+	private static String getAssetName(FreshnessCheck imported) {
+		MediaBinAssetCache.Entry<MBAsset> cached = MediaBinAssetCache.getAsset(imported.assetId, imported.assetPath);
+		if (cached != null && cached.getValue() != null) {
+			return cached.getValue().getMName();
+		}
+		if (imported.assetPath != null && imported.assetPath.length() > 0) {
+			return imported.assetPath.substring(imported.assetPath.lastIndexOf('/') + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the file exists, imports are renamed into place once they are complete
+	 */
+	private static boolean isReady(FreshnessCheck imported) {
+		return imported.file.exists();
+	}
+
+	private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			return ifNoneMatch.trim().equals("*") || ifNoneMatch.indexOf(etag) >= 0;
+		}
+		try {
+			long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+			// HTTP dates only have a precision of seconds
+			return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+		}
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return false if an If-Range header asks for the whole file because it has changed
+	 */
+	private static boolean isRangeApplicable(HttpServletRequest request, String etag) {
+		String ifRange = request.getHeader("If-Range");
+		return ifRange == null || ifRange.trim().equals(etag);
+	}
+
+	/**
+	 * Parses a single "bytes=" range, multiple ranges are not supported and the whole file is sent instead
+	 *
+	 * @return the first and last byte, an empty array to send the whole file, or null if the range cannot be satisfied
+	 */
+	private static long[] parseRange(String range, long length) {
+		range = range.trim();
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+			return new long[0];
+		}
+
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return new long[0];
+		}
+
+		try {
+			long start;
+			long end;
+			if (dash == 0) {
+				// suffix range, the last n bytes
+				long suffix = Long.parseLong(spec.substring(1));
+				if (suffix <= 0) return null;
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			}
+			else {
+				start = Long.parseLong(spec.substring(0, dash));
+				end = (dash == spec.length() - 1) ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+			}
+			if (start >= length || start > end) {
+				return null;
+			}
+			return new long[] { start, end };
+		}
+		catch (NumberFormatException e) {
+			return new long[0];
+		}
+	}
+
+	private static String key(String assetId, String taskName) {
+		return assetId + "|" + taskName;
+	}
+
+}
@@ -0,0 +1,435 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only log of when each asset was last modified in MediaBin, and when that was checked.
+ *
+ * Every MediaBinRefreshCache update appends a record. On startup the log is read once, sequentially,
+ * and the checks that have not yet expired are restored into the MediaBinRefreshCache with their
+ * original check time, so they expire when they would have done without the restart. Nothing else
+ * is held in memory. The log is rewritten with only the latest unexpired check of each asset every
+ * Settings.getMetadataStoreCompactInterval().
+ *
+ * The log belongs to one JVM, which holds a lock on a ".lock" file next to it while it is open. A
+ * JVM that finds the lock held does not store asset metadata, rather than appending to a log that
+ * the other JVM rewrites when it compacts it.
+ */
+public class MediaBinMetadataStore {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinMetadataStore.class);
+
+	private static final byte CHECK_RECORD = 'C';
+	/** No longer written, records of imported transformations in older logs are skipped */
+	private static final byte IMPORT_RECORD = 'I';
+
+	private static File storeFile = Settings.getMetadataStoreFile();
+
+	private static File lockFile = new File(storeFile.getPath() + ".lock");
+
+	private static int compactInterval = Settings.getMetadataStoreCompactInterval();
+
+	private static long checkInterval = Settings.getUpdateCheckInterval();
+
+	private static Object lock = new Object();
+
+	/**
+	 * The log being appended to, null until the store has been opened
+	 */
+	private static DataOutputStream out = null;
+
+	/**
+	 * The lock on lockFile, held while the log is open
+	 */
+	private static FileLock fileLock = null;
+
+	private static long appendedSinceCompaction = 0;
+
+	/**
+	 * Reads the log, restores the unexpired checks into the MediaBinRefreshCache and opens the log for appending
+	 */
+	public static void open() {
+		synchronized (lock) {
+			if (out != null) {
+				return;
+			}
+			long start = System.currentTimeMillis();
+			try {
+				if (!lock()) {
+					mLogger.error("Metadata store " + storeFile.getAbsolutePath() + " is in use by another JVM, asset metadata is not stored. "
+							+ "Set mediabin-instance-name or mediabin-metadata-store-file to give each JVM its own");
+					return;
+				}
+				long validLength = replay();
+				if (storeFile.exists() && storeFile.length() > validLength) {
+					// the end of the last record written before a crash, drop it so new records can be read back
+					mLogger.warn("Truncating incomplete record at the end of " + storeFile.getAbsolutePath());
+					RandomAccessFile file = new RandomAccessFile(storeFile, "rw");
+					try {
+						file.setLength(validLength);
+					}
+					finally {
+						file.close();
+					}
+				}
+				openForAppend();
+				mLogger.info("Opened metadata store " + storeFile.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + "ms");
+			}
+			catch (IOException e) {
+				mLogger.error("Unable to open metadata store " + storeFile.getAbsolutePath() + " : " + e.getMessage(), e);
+				unlock();
+				return;
+			}
+		}
+
+		if (compactInterval > 0) {
+			scheduleCompaction();
+		}
+	}
+
+	/**
+	 * Flushes and closes the log, later records are not stored
+	 */
+	public static void close() {
+		synchronized (lock) {
+			if (out != null) {
+				try {
+					out.close();
+				}
+				catch (IOException e) {
+					mLogger.warn("Unable to close metadata store : " + e.getMessage());
+				}
+				out = null;
+			}
+			unlock();
+		}
+	}
+
+	/**
+	 * Records that the modified time of an asset has been read from MediaBin
+	 *
+	 * @param assetId		the asset id
+	 * @param lastModified	the time the asset was last modified in MediaBin
+	 */
+	public static void recordCheck(String assetId, long lastModified) {
+		synchronized (lock) {
+			if (out == null) return;
+			try {
+				out.writeByte(CHECK_RECORD);
+				out.writeUTF(assetId);
+				out.writeLong(lastModified);
+				out.writeLong(System.currentTimeMillis());
+				out.flush();
+				appendedSinceCompaction++;
+			}
+			catch (IOException e) {
+				failed(e);
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the log with only the latest check of each asset, dropping the checks that have expired
+	 */
+	public static void compact() {
+		long compactedLength;
+		synchronized (lock) {
+			if (out == null || appendedSinceCompaction == 0) {
+				return;
+			}
+			compactedLength = storeFile.length();
+			appendedSinceCompaction = 0;
+		}
+
+		// the bulk of the work is done without the lock, records appended meanwhile are copied across afterwards
+		File tempFile = null;
+		try {
+			Map<String, AssetMetadata> assets = read(compactedLength);
+			tempFile = File.createTempFile(storeFile.getName() + ".", null, storeFile.getAbsoluteFile().getParentFile());
+			DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			long expiredBefore = System.currentTimeMillis() - checkInterval;
+			int kept = 0;
+			try {
+				for (Iterator<Map.Entry<String, AssetMetadata>> iter = assets.entrySet().iterator(); iter.hasNext(); ) {
+					Map.Entry<String, AssetMetadata> entry = iter.next();
+					if (entry.getValue().checkedAt > expiredBefore) {
+						entry.getValue().write(compacted, entry.getKey());
+						kept++;
+					}
+				}
+
+				synchronized (lock) {
+					if (out == null) {
+						// closed meanwhile
+						tempFile.delete();
+						return;
+					}
+					out.close();
+					out = null;
+					copyTail(compactedLength, compacted);
+					compacted.close();
+					compacted = null;
+					if (!tempFile.renameTo(storeFile) && !(storeFile.delete() && tempFile.renameTo(storeFile))) {
+						throw new IOException("Unable to rename " + tempFile.getAbsolutePath());
+					}
+					openForAppend();
+				}
+				mLogger.info("Compacted metadata store to " + kept + " assets, " + storeFile.length() + " bytes");
+			}
+			finally {
+				if (compacted != null) {
+					compacted.close();
+				}
+			}
+		}
+		catch (IOException e) {
+			mLogger.error("Unable to compact metadata store : " + e.getMessage(), e);
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+			synchronized (lock) {
+				if (out == null) {
+					try {
+						openForAppend();
+					}
+					catch (IOException reopen) {
+						mLogger.error("Unable to reopen metadata store, asset metadata is no longer stored : " + reopen.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the lock on the log has been taken, false if another JVM holds it
+	 */
+	private static boolean lock() throws IOException {
+		File parentDir = lockFile.getAbsoluteFile().getParentFile();
+		if (!parentDir.exists() && !parentDir.mkdirs()) {
+			throw new IOException("Unable to create directory " + parentDir.getAbsolutePath());
+		}
+		RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+		try {
+			fileLock = file.getChannel().tryLock();
+		}
+		catch (OverlappingFileLockException e) {
+			// held by an earlier deployment of this application in the same JVM
+			fileLock = null;
+		}
+		if (fileLock == null) {
+			file.close();
+			return false;
+		}
+		return true;
+	}
+
+	private static void unlock() {
+		if (fileLock != null) {
+			try {
+				fileLock.release();
+				fileLock.channel().close();
+			}
+			catch (IOException e) {
+				mLogger.warn("Unable to release lock on metadata store : " + e.getMessage());
+			}
+			fileLock = null;
+		}
+	}
+
+	private static void openForAppend() throws IOException {
+		File parentDir = storeFile.getAbsoluteFile().getParentFile();
+		if (!parentDir.exists() && !parentDir.mkdirs()) {
+			throw new IOException("Unable to create directory " + parentDir.getAbsolutePath());
+		}
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storeFile, true)));
+	}
+
+	private static void failed(IOException e) {
+		// a half written record is dropped when the log is next opened
+		mLogger.error("Unable to write to metadata store, asset metadata is no longer stored : " + e.getMessage(), e);
+		close();
+	}
+
+	private static void scheduleCompaction() {
+		MediaBinWorkQueue.schedule(new Runnable() {
+			public void run() {
+				try {
+					compact();
+				}
+				finally {
+					scheduleCompaction();
+				}
+			}
+		}, compactInterval);
+	}
+
+	/**
+	 * Restores the unexpired checks into the MediaBinRefreshCache
+	 *
+	 * @return the length of the complete records in the log
+	 */
+	private static long replay() throws IOException {
+		if (!storeFile.exists()) {
+			return 0;
+		}
+
+		long now = System.currentTimeMillis();
+		int restored = 0;
+		CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(storeFile)));
+		DataInputStream in = new DataInputStream(counter);
+		long validLength = 0;
+		try {
+			while (true) {
+				byte type = in.readByte();
+				String assetId = in.readUTF();
+				if (type == CHECK_RECORD) {
+					long lastModified = in.readLong();
+					long checkedAt = in.readLong();
+					if (MediaBinRefreshCache.restore(assetId, lastModified, now - checkedAt)) {
+						restored++;
+					}
+				}
+				else if (type == IMPORT_RECORD) {
+					in.readUTF();
+				}
+				else {
+					throw new IOException("Unknown record type " + type);
+				}
+				validLength = counter.count;
+			}
+		}
+		catch (EOFException e) {
+			// the end of the log, or a record cut short by a crash
+		}
+		catch (IOException e) {
+			mLogger.warn("Unreadable record in metadata store at byte " + validLength + " : " + e.getMessage());
+		}
+		finally {
+			in.close();
+		}
+		mLogger.info("Restored " + restored + " asset modified times from " + storeFile.getAbsolutePath());
+		return validLength;
+	}
+
+	/**
+	 * @return the latest check of every asset in the first length bytes of the log
+	 */
+	private static Map<String, AssetMetadata> read(long length) throws IOException {
+		Map<String, AssetMetadata> assets = new HashMap<String, AssetMetadata>();
+		CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(storeFile)));
+		DataInputStream in = new DataInputStream(counter);
+		try {
+			while (counter.count < length) {
+				byte type = in.readByte();
+				String assetId = in.readUTF();
+				if (type == CHECK_RECORD) {
+					AssetMetadata asset = assets.get(assetId);
+					if (asset == null) {
+						asset = new AssetMetadata();
+						assets.put(assetId, asset);
+					}
+					asset.lastModified = in.readLong();
+					asset.checkedAt = in.readLong();
+				}
+				else if (type == IMPORT_RECORD) {
+					in.readUTF();
+				}
+				else {
+					throw new IOException("Unknown record type " + type);
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		return assets;
+	}
+
+	private static void copyTail(long from, DataOutputStream to) throws IOException {
+		InputStream in = new FileInputStream(storeFile);
+		try {
+			long skipped = 0;
+			while (skipped < from) {
+				long n = in.skip(from - skipped);
+				if (n <= 0) throw new IOException("Metadata store shorter than expected");
+				skipped += n;
+			}
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				to.write(buffer, 0, n);
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static class AssetMetadata {
+
+		long lastModified = 0;
+		long checkedAt = 0;
+
+		void write(DataOutputStream out, String assetId) throws IOException {
+			out.writeByte(CHECK_RECORD);
+			out.writeUTF(assetId);
+			out.writeLong(lastModified);
+			out.writeLong(checkedAt);
+		}
+
+	}
+
+	/**
+	 * Counts the bytes read, so that the end of the last complete record is known
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) count += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+	}
+
+}
@@ -0,0 +1,353 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Timers and counters of what the MediaBin integration is doing, together with the statistics
+ * already kept by the work queue, the connection pool and the caches.
+ *
+ * Every value is readable as an attribute of the MBean registered by registerMBean(), and all of
+ * them can be written out as plain text by dump(). Timers keep a count, a total and a maximum, so
+ * recording a time is a few atomic additions and nothing is kept per call.
+ */
+public class MediaBinMetrics {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinMetrics.class);
+
+	public static final String OBJECT_NAME = "com.eu.interflow.livesite.mediabin:type=MediaBinMetrics";
+
+	/** MediaBinServerSoap.getAsset() and getAssetByName() */
+	public static final String SOAP_GET_ASSET = "soap.getAsset";
+	/** MediaBinServerSoap.getRootContainer() and getContainerByPath() */
+	public static final String SOAP_GET_CONTAINER = "soap.getContainer";
+	/** MediaBinServerSoap.getTask() */
+	public static final String SOAP_GET_TASK = "soap.getTask";
+	/** A transformation run by an import, including the download of its result */
+	public static final String SOAP_TRANSFORMATION = "soap.transformation";
+	/** A transformation streamed straight to the client */
+	public static final String SOAP_STREAM = "soap.stream";
+	/** From an import being submitted to its file being in place */
+	public static final String IMPORT_TIME_TO_READY = "import.timeToReady";
+	/** The time importAsset() adds to a render */
+	public static final String RENDER_IMPORT_ASSET = "render.importAsset";
+	/** The time importSourceAssets() adds to a render */
+	public static final String RENDER_IMPORT_SOURCE_ASSETS = "render.importSourceAssets";
+
+	/** The transformations and streams whose result was kept in the import directory */
+	public static final String DOWNLOAD = "download";
+	/** Bytes written to the import directory by imports and kept streams */
+	public static final String DOWNLOAD_BYTES = "download.bytes";
+
+	private static Map<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+	private static Map<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * @param name	the name of the timer
+	 * @return the timer, which is created the first time it is asked for
+	 */
+	public static Timer timer(String name) {
+		Timer timer = timers.get(name);
+		if (timer == null) {
+			synchronized (timers) {
+				timer = timers.get(name);
+				if (timer == null) {
+					timer = new Timer();
+					timers.put(name, timer);
+				}
+			}
+		}
+		return timer;
+	}
+
+	/**
+	 * Records the time since startNanos against the named timer
+	 *
+	 * @param name			the name of the timer
+	 * @param startNanos	System.nanoTime() when the timed work started
+	 */
+	public static void time(String name, long startNanos) {
+		timer(name).record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param name	the name of the counter
+	 * @param delta	the amount to add to the counter
+	 */
+	public static void increment(String name, long delta) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			synchronized (counters) {
+				counter = counters.get(name);
+				if (counter == null) {
+					counter = new AtomicLong();
+					counters.put(name, counter);
+				}
+			}
+		}
+		counter.addAndGet(delta);
+	}
+
+	/**
+	 * Records a completed download
+	 *
+	 * @param bytes			the size of the downloaded file
+	 * @param startNanos	System.nanoTime() when the download started
+	 */
+	public static void download(long bytes, long startNanos) {
+		increment(DOWNLOAD_BYTES, bytes);
+		time(DOWNLOAD, startNanos);
+	}
+
+	/**
+	 * @return the current value of every metric, by name
+	 */
+	public static SortedMap<String, Number> getValues() {
+		SortedMap<String, Number> values = new TreeMap<String, Number>();
+
+		for (Iterator<Map.Entry<String, Timer>> iter = timers.entrySet().iterator(); iter.hasNext(); ) {
+			Map.Entry<String, Timer> entry = iter.next();
+			entry.getValue().addTo(values, entry.getKey());
+		}
+		for (Iterator<Map.Entry<String, AtomicLong>> iter = counters.entrySet().iterator(); iter.hasNext(); ) {
+			Map.Entry<String, AtomicLong> entry = iter.next();
+			values.put(entry.getKey(), new Long(entry.getValue().get()));
+		}
+
+		Timer downloads = timers.get(DOWNLOAD);
+		AtomicLong bytes = counters.get(DOWNLOAD_BYTES);
+		if (downloads != null && bytes != null && downloads.getTotalNanos() > 0) {
+			values.put("download.bytesPerSecond", new Long(bytes.get() * 1000000000L / downloads.getTotalNanos()));
+		}
+
+		values.put("queue.depth", new Integer(MediaBinWorkQueue.getQueueDepth()));
+		values.put("queue.capacity", new Integer(MediaBinWorkQueue.getQueueCapacity()));
+		values.put("queue.inFlight", new Integer(MediaBinWorkQueue.getInFlight()));
+		values.put("queue.started", new Long(MediaBinWorkQueue.getStartedCount()));
+		values.put("queue.rejected", new Long(MediaBinWorkQueue.getRejectedCount()));
+		values.put("queue.wait.meanMillis", new Long(MediaBinWorkQueue.getAverageWaitMillis()));
+		values.put("queue.wait.maxMillis", new Long(MediaBinWorkQueue.getMaxWaitMillis()));
+
+		values.put("connections.idle", new Integer(MediaBinConnectionManager.getIdleCount()));
+		values.put("connections.created", new Long(MediaBinConnectionManager.getCreatedCount()));
+		values.put("connections.reused", new Long(MediaBinConnectionManager.getReusedCount()));
+		values.put("connections.evicted", new Long(MediaBinConnectionManager.getEvictedCount()));
+
+		values.put("refreshCache.size", new Integer(MediaBinRefreshCache.size()));
+		values.put("refreshCache.hits", new Long(MediaBinRefreshCache.getHitCount()));
+		values.put("refreshCache.misses", new Long(MediaBinRefreshCache.getMissCount()));
+		values.put("refreshCache.expiries", new Long(MediaBinRefreshCache.getExpiredCount()));
+		values.put("refreshCache.evictions", new Long(MediaBinRefreshCache.getEvictionCount()));
+
+		values.put("imports.pending", new Integer(MediaBinImportRegistry.size()));
+		values.put("importIndex.size", new Integer(MediaBinImportIndex.size()));
+
+		return values;
+	}
+
+	/**
+	 * @return every metric as a "name value" line, in name order
+	 */
+	public static String dump() {
+		StringBuilder sb = new StringBuilder();
+		for (Iterator<Map.Entry<String, Number>> iter = getValues().entrySet().iterator(); iter.hasNext(); ) {
+			Map.Entry<String, Number> entry = iter.next();
+			sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server as OBJECT_NAME, replacing any MBean already 
+	 * registered under that name. That is usually the one registered before the web application was 
+	 * redeployed, which would otherwise keep the old deployment's classes loaded
+	 */
+	public static void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				try {
+					server.unregisterMBean(name);
+					mLogger.info("Replacing MediaBin metrics already registered as " + OBJECT_NAME);
+				}
+				catch (InstanceNotFoundException e) {
+					// unregistered meanwhile
+				}
+			}
+			server.registerMBean(new MetricsMBean(), name);
+			mLogger.info("Registered MediaBin metrics as " + OBJECT_NAME);
+		}
+		catch (InstanceAlreadyExistsException e) {
+			// registered by another thread meanwhile
+		}
+		catch (Exception e) {
+			mLogger.warn("Unable to register MediaBin metrics with JMX : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server, if this class registered them. Should be called 
+	 * when the web application is stopped, so the MBean server does not keep its classes loaded
+	 */
+	public static void unregisterMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			// only the MBean of this deployment, not one registered since by a later deployment
+			if (server.isRegistered(name) && MetricsMBean.class.getName().equals(server.getObjectInstance(name).getClassName())
+					&& MetricsMBean.class.getClassLoader() == server.getClassLoaderFor(name)) {
+				server.unregisterMBean(name);
+				mLogger.info("Unregistered MediaBin metrics " + OBJECT_NAME);
+			}
+		}
+		catch (InstanceNotFoundException e) {
+			// unregistered meanwhile
+		}
+		catch (Exception e) {
+			mLogger.warn("Unable to unregister MediaBin metrics from JMX : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The count, total and maximum of a timed operation
+	 */
+	public static class Timer {
+
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		/**
+		 * @param nanos	the time taken, in nanoseconds
+		 */
+		public void record(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		/**
+		 * @return the number of times recorded
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @return the sum of the times recorded, in nanoseconds
+		 */
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		/**
+		 * @return the mean of the times recorded, in milliseconds
+		 */
+		public double getMeanMillis() {
+			long n = count.get();
+			return (n == 0) ? 0 : totalNanos.get() / 1000000.0 / n;
+		}
+
+		/**
+		 * @return the longest time recorded, in milliseconds
+		 */
+		public double getMaxMillis() {
+			return maxNanos.get() / 1000000.0;
+		}
+
+		void addTo(Map<String, Number> values, String name) {
+			values.put(name + ".count", new Long(getCount()));
+			values.put(name + ".totalMillis", new Long(getTotalNanos() / 1000000L));
+			values.put(name + ".meanMillis", new Double(getMeanMillis()));
+			values.put(name + ".maxMillis", new Double(getMaxMillis()));
+		}
+
+	}
+
+	/**
+	 * Exposes getValues() as read-only attributes, the attributes are those of the metrics that exist
+	 * when getMBeanInfo() is called, as timers and counters are only created when first used
+	 */
+	private static class MetricsMBean implements DynamicMBean {
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Number value = getValues().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			SortedMap<String, Number> values = getValues();
+			AttributeList list = new AttributeList();
+			for (int i = 0; i < attributes.length; i++) {
+				Number value = values.get(attributes[i]);
+				if (value != null) {
+					list.add(new Attribute(attributes[i], value));
+				}
+			}
+			return list;
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			SortedMap<String, Number> values = getValues();
+			MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+			int i = 0;
+			for (Iterator<Map.Entry<String, Number>> iter = values.entrySet().iterator(); iter.hasNext(); i++) {
+				Map.Entry<String, Number> entry = iter.next();
+				attributes[i] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false);
+			}
+			MBeanOperationInfo[] operations = new MBeanOperationInfo[] {
+				new MBeanOperationInfo("dump", "All metrics as text", null, String.class.getName(), MBeanOperationInfo.INFO)
+			};
+			return new MBeanInfo(MediaBinMetrics.class.getName(), "MediaBin client metrics", attributes,
+					new MBeanConstructorInfo[0], operations, new MBeanNotificationInfo[0]);
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			if ("dump".equals(actionName)) {
+				return dump();
+			}
+			throw new ReflectionException(new NoSuchMethodException(actionName), "No such operation : " + actionName);
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("MediaBin metrics are read-only : " + attribute.getName());
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+	}
+
+}
@@ -0,0 +1,199 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Registry of the known MediaBin transformation RuntimeParameters and the type their
+ * values are converted to before being passed to MediaBin.
+ *
+ * Values are converted when the transformations DCR is compiled, so the render path
+ * never parses them.
+ */
+public class MediaBinParameterRegistry {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinParameterRegistry.class);
+
+	/**
+	 * The supported runtime parameter value types
+	 */
+	public enum ParameterType {
+
+		DOUBLE {
+			Object convert(String value) {
+				return Double.valueOf(value);
+			}
+		},
+		INTEGER {
+			Object convert(String value) {
+				return Integer.valueOf(value);
+			}
+		},
+		BOOLEAN {
+			Object convert(String value) {
+				return Boolean.valueOf(value);
+			}
+		};
+
+		/**
+		 * @throws NumberFormatException when the value is not a valid number
+		 */
+		abstract Object convert(String value);
+
+	}
+
+	private static Map<String, ParameterType> types = new ConcurrentHashMap<String, ParameterType>();
+
+	static {
+		register("Image Size/Image Sizer Parameters/Output Width", ParameterType.DOUBLE);
+		register("Image Size/Image Sizer Parameters/Output Height", ParameterType.DOUBLE);
+		register("Image Size/Image Sizer Parameters/Resolution", ParameterType.DOUBLE);
+		register("Rotator/Rotation in degrees/Rotation in degrees", ParameterType.DOUBLE);
+		register("Padder/Pad Primitive Parameter/Width", ParameterType.INTEGER);
+		register("Padder/Pad Primitive Parameter/Height", ParameterType.INTEGER);
+		register("JPEG Encoder/JPEG Quality/JPEG Quality", ParameterType.INTEGER);
+		register("Image Size/Image Sizer Parameters/Constrain Proportions", ParameterType.BOOLEAN);
+	}
+
+	/**
+	 * Registers (or replaces) the type of a runtime parameter. Only affects transformations DCRs compiled afterwards.
+	 *
+	 * @param name	the full runtime parameter name, e.g. "Image Size/Image Sizer Parameters/Output Width"
+	 * @param type	the type the parameter value is converted to
+	 */
+	public static void register(String name, ParameterType type) {
+		types.put(name, type);
+	}
+
+	/**
+	 * @param name	the full runtime parameter name
+	 * @return the registered type, or null if the parameter is unknown
+	 */
+	public static ParameterType getType(String name) {
+		return types.get(name);
+	}
+
+	/**
+	 * Takes a RuntimeParameter name and value, and if the name is recognised,
+	 * returns an object representation of the value. If the value cannot be
+	 * made into a valid object (e.g. text into a number) null is returned
+	 *
+	 * @param name   name of runtime parameter
+	 * @param value  value of runtime parameter
+	 *
+	 * @return the object representing the value of the runtime parameter, or null if no parameter known or the value is invalid
+	 */
+	public static Object convert(String name, String value) {
+		ParameterType type = types.get(name);
+		if (type == null) {
+			mLogger.warn("Transformation Runtime Parameter '" + name + "' unknown");
+			return null;
+		}
+		try {
+			return type.convert(value);
+		} catch (NumberFormatException e) {
+			mLogger.error("Transformation Runtime Parameter '" + name + "' has value not interpretable as a number : " + value, e);
+		}
+		return null;
+	}
+
+	/**
+	 * The converted runtime parameters of a single Transformation, along with the
+	 * suffix their values add to the transformed filename.
+	 *
+	 * It is a HashMap so that it can be handed straight to the transformation requests,
+	 * but it cannot be modified once it has been frozen.
+	 */
+	@SuppressWarnings("serial")
+	public static class ParameterSet extends HashMap<String, Object> {
+
+		private StringBuffer nameParamsBuffer = new StringBuffer();
+		private String nameParams = null;
+		private Set<Map.Entry<String, Object>> frozenEntries = null;
+
+		/**
+		 * Converts and adds a runtime parameter, the value is also appended to the filename suffix
+		 *
+		 * @param name	name of runtime parameter
+		 * @param value	value of runtime parameter
+		 */
+		public void add(String name, String value) {
+			put(name, convert(name, value));
+			nameParamsBuffer.append("_").append(value);
+		}
+
+		/**
+		 * Prevents any further modification of this parameter set
+		 *
+		 * @return this parameter set
+		 */
+		public ParameterSet freeze() {
+			nameParams = nameParamsBuffer.toString();
+			// the entries of an unmodifiable map cannot be changed with setValue(), the copy never goes stale as this no longer changes
+			frozenEntries = Collections.unmodifiableMap(new HashMap<String, Object>(this)).entrySet();
+			nameParamsBuffer = null;
+			return this;
+		}
+
+		/**
+		 * @return the suffix built from the runtime parameter values, used in the transformed filename
+		 */
+		public String getNameParams() {
+			return nameParams;
+		}
+
+		private void checkFrozen() {
+			if (nameParamsBuffer == null) {
+				throw new UnsupportedOperationException("Runtime parameters cannot be modified once compiled");
+			}
+		}
+
+		@Override
+		public Object put(String key, Object value) {
+			checkFrozen();
+			return super.put(key, value);
+		}
+
+		@Override
+		public void putAll(Map<? extends String, ? extends Object> m) {
+			checkFrozen();
+			super.putAll(m);
+		}
+
+		@Override
+		public Object remove(Object key) {
+			checkFrozen();
+			return super.remove(key);
+		}
+
+		@Override
+		public void clear() {
+			checkFrozen();
+			super.clear();
+		}
+
+		@Override
+		public Set<String> keySet() {
+			return (nameParamsBuffer == null) ? Collections.unmodifiableSet(super.keySet()) : super.keySet();
+		}
+
+		@Override
+		public Collection<Object> values() {
+			return (nameParamsBuffer == null) ? Collections.unmodifiableCollection(super.values()) : super.values();
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return (nameParamsBuffer == null) ? frozenEntries : super.entrySet();
+		}
+
+	}
+
+}
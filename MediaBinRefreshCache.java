@@ -1,23 +1,58 @@
 package com.eu.interflow.livesite.mediabin;
 
-import java.util.Calendar;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 public class MediaBinRefreshCache {
 	
-	protected static HashMap<String, CacheItem> cache;
+	protected static ConcurrentHashMap<String, CacheItem> cache;
 
 	protected static int checkInterval;
 	
+	protected static int maxEntries;
+	
+	private static long checkIntervalNanos;
+	
+	private static AtomicLong hits      = new AtomicLong();
+	private static AtomicLong misses    = new AtomicLong();
+	private static AtomicLong expiries  = new AtomicLong();
+	private static AtomicLong evictions = new AtomicLong();
+	
+	/**
+	 * Set while an eviction is scheduled or running, so that only one sweep of the cache happens at a time
+	 */
+	private static AtomicBoolean evicting = new AtomicBoolean(false);
+	
+	private static Runnable evictTask = new Runnable() {
+		public void run() {
+			try {
+				evict();
+			}
+			finally {
+				evicting.set(false);
+			}
+		}
+	};
+	
 	private static Log mLogger = LogFactory.getLog(MediaBinRefreshCache.class);
 
 	static {
 		mLogger.info("CREATING MediaBinRefreshCache");
-		cache = new HashMap<String, CacheItem>();
+		cache = new ConcurrentHashMap<String, CacheItem>();
 		checkInterval = Settings.getUpdateCheckInterval();
+		checkIntervalNanos = checkInterval * 1000000L;
+		maxEntries = Settings.getRefreshCacheMaxEntries();
 	}
 	
 	/**
@@ -29,22 +64,30 @@ public class MediaBinRefreshCache {
 	public static long getModifiedTime(String assetId) {
 		CacheItem c = cache.get(assetId);
 		if (c == null) {
+			misses.incrementAndGet();
 			return 0;
 		}
 		else {
+			long now = System.nanoTime();
 			if (mLogger.isDebugEnabled()) {
 				mLogger.debug(
 						"AssetId : " + assetId 
 						+ " lastMod = " + c.lastModifiedTime
-						+ " ; " + (c.lastCheckTime + checkInterval) 
-						+ " < " + Calendar.getInstance().getTimeInMillis()
+						+ " ; checked " + ((now - c.lastCheckTime) / 1000000L) + "ms ago"
 				);
 			}
-			if (c.lastCheckTime + checkInterval < Calendar.getInstance().getTimeInMillis()) {
-				mLogger.debug("AssetId : " + assetId + " >>>> CACHE EXPIRED");
+			if (c.lastCheckTime + checkIntervalNanos < now) {
+				if (mLogger.isDebugEnabled()) {
+					mLogger.debug("AssetId : " + assetId + " >>>> CACHE EXPIRED");
+				}
+				// only remove the entry we looked at, it may have just been refreshed by another thread
+				cache.remove(assetId, c);
+				expiries.incrementAndGet();
+				misses.incrementAndGet();
 				return 0;
 			}
 			else {
+				hits.incrementAndGet();
 				return c.lastModifiedTime;
 			}
 		}
@@ -57,38 +100,160 @@ public class MediaBinRefreshCache {
 	 */
 	public static void setModifiedTime(String assetId, long lastModifiedTime) {
 		
-		synchronized (cache) {
-			CacheItem c = cache.get(assetId);
-			if (c == null) {
-				if (mLogger.isDebugEnabled()) {
-					mLogger.debug("SET NEW AssetId : " + assetId + " : " + lastModifiedTime);
+		CacheItem c = new CacheItem(lastModifiedTime, System.nanoTime());
+		while (true) {
+			CacheItem current = cache.get(assetId);
+			if (current == null) {
+				if (cache.putIfAbsent(assetId, c) == null) {
+					if (mLogger.isDebugEnabled()) {
+						mLogger.debug("SET NEW AssetId : " + assetId + " : " + lastModifiedTime);
+					}
+					break;
 				}
-				cache.put(assetId, new CacheItem(lastModifiedTime));
 			}
-			else {
+			else if (current.lastCheckTime - c.lastCheckTime > 0) {
+				// a newer check has already been stored by another thread
+				break;
+			}
+			else if (cache.replace(assetId, current, c)) {
 				if (mLogger.isDebugEnabled()) {
-					mLogger.debug("UPDATE AssetId : " + assetId  + " : " + lastModifiedTime + " > " + Calendar.getInstance().getTimeInMillis());
+					mLogger.debug("UPDATE AssetId : " + assetId  + " : " + lastModifiedTime);
 				}
-				c.update(lastModifiedTime);
+				break;
 			}
 		}
+		
+		MediaBinMetadataStore.recordCheck(assetId, lastModifiedTime);
+		
+		if (cache.size() > maxEntries) {
+			scheduleEvict();
+		}
 
 	}
 	
 	/**
-	 * Single cache item in the cache, just holds the last check time and the last modified time
-	 * @author brobertson
+	 * Has the cache swept on the housekeeping thread, so that the thread that filled it does not pay for the sweep
 	 */
-	private static class CacheItem {
-		public long lastCheckTime;
-		public long lastModifiedTime;
+	private static void scheduleEvict() {
+		if (evicting.compareAndSet(false, true)) {
+			try {
+				MediaBinWorkQueue.schedule(evictTask, 0);
+			}
+			catch (RejectedExecutionException e) {
+				// the housekeeping thread has been shut down
+				evictTask.run();
+			}
+		}
+	}
+	
+	/**
+	 * Brings the cache back under 90% of its maximum size, expired entries are removed first 
+	 * and then the entries that were checked longest ago
+	 */
+	private static void evict() {
+		
+		int target = maxEntries - (maxEntries / 10);
+		long now = System.nanoTime();
+		
+		for (Iterator<Map.Entry<String, CacheItem>> iter = cache.entrySet().iterator(); iter.hasNext(); ) {
+			Map.Entry<String, CacheItem> entry = iter.next();
+			if (entry.getValue().lastCheckTime + checkIntervalNanos < now && cache.remove(entry.getKey(), entry.getValue())) {
+				expiries.incrementAndGet();
+			}
+		}
+		
+		if (cache.size() > target) {
+			List<Map.Entry<String, CacheItem>> entries = new ArrayList<Map.Entry<String, CacheItem>>(cache.entrySet());
+			Collections.sort(entries, new Comparator<Map.Entry<String, CacheItem>>() {
+				public int compare(Map.Entry<String, CacheItem> o1, Map.Entry<String, CacheItem> o2) {
+					long diff = o1.getValue().lastCheckTime - o2.getValue().lastCheckTime;
+					return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+				}
+			});
+			
+			for (Iterator<Map.Entry<String, CacheItem>> iter = entries.iterator(); iter.hasNext() && cache.size() > target; ) {
+				Map.Entry<String, CacheItem> entry = iter.next();
+				if (cache.remove(entry.getKey(), entry.getValue())) {
+					evictions.incrementAndGet();
+				}
+			}
+		}
 		
-		public CacheItem(long lastModifiedTime) {
-			update(lastModifiedTime);
+		if (mLogger.isDebugEnabled()) {
+			mLogger.debug("Evicted MediaBinRefreshCache down to " + cache.size() + " entries");
 		}
 		
-		public void update(long lastModifiedTime) {
-			this.lastCheckTime    = Calendar.getInstance().getTimeInMillis();
+	}
+	
+	/**
+	 * Restores an entry read back from the MediaBinMetadataStore, keeping the time it was checked 
+	 * so that it expires when it would have done without a restart
+	 * 
+	 * @param assetId
+	 * @param lastModifiedTime
+	 * @param checkedMillisAgo	how long ago the modified time was read from MediaBin
+	 * @return true if the entry was restored, false if it has already expired
+	 */
+	static boolean restore(String assetId, long lastModifiedTime, long checkedMillisAgo) {
+		if (checkedMillisAgo >= checkInterval) {
+			return false;
+		}
+		// the store is read in the order it was written, so a later entry for the asset replaces an earlier one
+		cache.put(assetId, new CacheItem(lastModifiedTime, System.nanoTime() - Math.max(0, checkedMillisAgo) * 1000000L));
+		if (cache.size() > maxEntries) {
+			scheduleEvict();
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the number of entries currently in the cache
+	 */
+	public static int size() {
+		return cache.size();
+	}
+	
+	/**
+	 * @return the number of lookups that found an unexpired entry
+	 */
+	public static long getHitCount() {
+		return hits.get();
+	}
+	
+	/**
+	 * @return the number of lookups that found no entry or an expired entry
+	 */
+	public static long getMissCount() {
+		return misses.get();
+	}
+	
+	/**
+	 * @return the number of entries removed because they had expired
+	 */
+	public static long getExpiredCount() {
+		return expiries.get();
+	}
+	
+	/**
+	 * @return the number of unexpired entries removed to keep the cache within its maximum size
+	 */
+	public static long getEvictionCount() {
+		return evictions.get();
+	}
+	
+	/**
+	 * Single immutable cache item in the cache, just holds the last check time and the last modified time
+	 * @author brobertson
+	 */
+	private static class CacheItem {
+		/**
+		 * System.nanoTime() when the modified time was read from MediaBin
+		 */
+		public final long lastCheckTime;
+		public final long lastModifiedTime;
+		
+		public CacheItem(long lastModifiedTime, long lastCheckTime) {
+			this.lastCheckTime    = lastCheckTime;
 			this.lastModifiedTime = lastModifiedTime;
 		}
 		
@@ -0,0 +1,237 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mediabin.www.MBParameter;
+import com.mediabin.www.MBParameterElement;
+import com.mediabin.www.MBParameterType;
+import com.mediabin.www.MBPrimitive;
+import com.mediabin.www.MBRunTimeParameter;
+import com.mediabin.www.MBRunTimeParameterFlags;
+import com.mediabin.www.MBRunTimePrimitive;
+import com.mediabin.www.MBTask;
+import com.mediabin.www.MediaBinServerSoap;
+
+/**
+ * Cache of MediaBin task definitions, keyed by task id.
+ *
+ * Each task is fetched from MediaBin once per Settings.getTaskCacheTTL() and compiled into a
+ * TaskTemplate holding only the runtime parameter slots of the task, so building the
+ * MBRunTimePrimitive[] for a transformation needs no remote call and no walk of the task.
+ */
+public class MediaBinTaskCache {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinTaskCache.class);
+
+	private static Map<String, TaskTemplate> cache = new ConcurrentHashMap<String, TaskTemplate>();
+
+	private static long ttlNanos = Settings.getTaskCacheTTL() * 1000000L;
+
+	/**
+	 * Returns the compiled template for the passed task, fetching it from MediaBin if it is not
+	 * in the cache or the cache entry has expired
+	 *
+	 * @param mbServer	the server used to fetch the task on a cache miss
+	 * @param taskId	the id of the task
+	 * @return the task template
+	 * @throws RemoteException when the task cannot be fetched
+	 */
+	public static TaskTemplate getTemplate(MediaBinServerSoap mbServer, String taskId) throws RemoteException {
+		TaskTemplate template = cache.get(taskId);
+		if (template == null || template.loadedAt + ttlNanos < System.nanoTime()) {
+			if (mLogger.isDebugEnabled()) {
+				mLogger.debug("Fetching MediaBin task : " + taskId + ((template == null) ? "" : " >>>> CACHE EXPIRED"));
+			}
+			long start = System.nanoTime();
+			MBTask task;
+			try {
+				task = mbServer.getTask(taskId);
+			}
+			finally {
+				MediaBinMetrics.time(MediaBinMetrics.SOAP_GET_TASK, start);
+			}
+			template = new TaskTemplate(task);
+			cache.put(taskId, template);
+		}
+		return template;
+	}
+
+	/**
+	 * Removes the passed task from the cache, so that it is fetched again on next use
+	 *
+	 * @param taskId
+	 */
+	public static void invalidate(String taskId) {
+		cache.remove(taskId);
+	}
+
+	/**
+	 * Removes all tasks from the cache
+	 */
+	public static void invalidateAll() {
+		cache.clear();
+	}
+
+	/**
+	 * The runtime parameter slots of a MediaBin task, in task order.
+	 *
+	 * Only the elements that are runtime flagged, or belong to a compound parameter,
+	 * are kept, which are exactly the elements sent back to MediaBin with a transformation.
+	 */
+	public static class TaskTemplate {
+
+		private final long loadedAt = System.nanoTime();
+
+		/**
+		 * null when the task has no primitives
+		 */
+		private final PrimitiveSlot[] primitives;
+
+		TaskTemplate(MBTask task) {
+			MBPrimitive prims[] = task.getMPrimitives();
+			if (prims == null || prims.length == 0) {
+				primitives = null;
+				return;
+			}
+
+			List<PrimitiveSlot> primSlots = new ArrayList<PrimitiveSlot>();
+			for (int j = 0; j < prims.length; j++) {
+				MBParameter params[] = prims[j].getMParameters();
+				if (params == null)
+					continue;
+
+				List<ParameterSlot> paramSlots = new ArrayList<ParameterSlot>();
+				for (int k = 0; k < params.length; k++) {
+					MBParameter param = params[k];
+					if (param.getMType() == MBParameterType.Metadata || param.getMElements() == null)
+						continue;
+
+					Object elements[] = param.getMElements();
+					List<ElementSlot> elementSlots = new ArrayList<ElementSlot>();
+					for (int l = 0; l < elements.length; l++) {
+						if (!(elements[l] instanceof MBParameterElement))
+							continue;
+						MBParameterElement pe = (MBParameterElement) elements[l];
+						MBRunTimeParameterFlags flag = pe.getMFlag();
+						if (flag != MBRunTimeParameterFlags.RTPNone) {
+							elementSlots.add(new ElementSlot(pe, prims[j].getMName() + "/" + param.getMName() + "/" + pe.getMName()));
+						}
+						else if (param.getMType() == MBParameterType.Compound) {
+							elementSlots.add(new ElementSlot(pe, null));
+						}
+					}
+
+					if (!elementSlots.isEmpty()) {
+						paramSlots.add(new ParameterSlot(param, elementSlots.toArray(new ElementSlot[elementSlots.size()])));
+					}
+				}
+
+				if (!paramSlots.isEmpty()) {
+					primSlots.add(new PrimitiveSlot(prims[j], paramSlots.toArray(new ParameterSlot[paramSlots.size()])));
+				}
+			}
+
+			primitives = primSlots.toArray(new PrimitiveSlot[primSlots.size()]);
+		}
+
+		/**
+		 * Builds the runtime primitives for a transformation, filling the runtime parameter
+		 * slots with the values from the import context, or the task defaults where the
+		 * import context has no value
+		 *
+		 * @param importCtx	the runtime parameter values keyed by "primitive/parameter/element" name
+		 * @return the runtime primitives, or null if the task has no primitives
+		 */
+		@SuppressWarnings("unchecked")
+		public MBRunTimePrimitive[] build(Map importCtx) {
+			if (primitives == null)
+				return null;
+
+			MBRunTimePrimitive[] rtPrims = new MBRunTimePrimitive[primitives.length];
+			for (int j = 0; j < primitives.length; j++) {
+				PrimitiveSlot primSlot = primitives[j];
+
+				MBRunTimeParameter[] rtParams = new MBRunTimeParameter[primSlot.parameters.length];
+				for (int k = 0; k < primSlot.parameters.length; k++) {
+					ParameterSlot paramSlot = primSlot.parameters[k];
+
+					Object[] rtElements = new Object[paramSlot.elements.length];
+					for (int l = 0; l < paramSlot.elements.length; l++) {
+						ElementSlot elementSlot = paramSlot.elements[l];
+						Object rtValue = (elementSlot.key == null) ? null : importCtx.get(elementSlot.key);
+						if (rtValue == null) {
+							rtValue = elementSlot.element.getMValue();
+						}
+
+						MBParameterElement rtEl = new MBParameterElement();
+						rtEl.setMName(elementSlot.element.getMName());
+						rtEl.setMFlag(elementSlot.element.getMFlag());
+						rtEl.setMValue(rtValue);
+						rtElements[l] = rtEl;
+					}
+
+					MBRunTimeParameter rtParam = new MBRunTimeParameter();
+					rtParam.setMID(paramSlot.parameter.getMID());
+					rtParam.setMElements(rtElements);
+					rtParams[k] = rtParam;
+				}
+
+				MBRunTimePrimitive rtPrim = new MBRunTimePrimitive();
+				rtPrim.setMID(primSlot.primitive.getMID());
+				rtPrim.setMParameters(rtParams);
+				rtPrims[j] = rtPrim;
+			}
+
+			return rtPrims;
+		}
+
+	}
+
+	private static class PrimitiveSlot {
+
+		final MBPrimitive primitive;
+		final ParameterSlot[] parameters;
+
+		PrimitiveSlot(MBPrimitive primitive, ParameterSlot[] parameters) {
+			this.primitive = primitive;
+			this.parameters = parameters;
+		}
+
+	}
+
+	private static class ParameterSlot {
+
+		final MBParameter parameter;
+		final ElementSlot[] elements;
+
+		ParameterSlot(MBParameter parameter, ElementSlot[] elements) {
+			this.parameter = parameter;
+			this.elements = elements;
+		}
+
+	}
+
+	private static class ElementSlot {
+
+		final MBParameterElement element;
+
+		/**
+		 * the import context key of a runtime flagged element, null when the element is not runtime flagged
+		 */
+		final String key;
+
+		ElementSlot(MBParameterElement element, String key) {
+			this.element = element;
+			this.key = key;
+		}
+
+	}
+
+}
@@ -0,0 +1,219 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Response wrapper that copies the body sent to the client into a temporary file, so that an
+ * asset streamed from MediaBin can be kept in the import directory.
+ *
+ * The copy is abandoned, without affecting the client, if writing it fails, if the body is
+ * written through getWriter(), if the response is not a 200, or if the length of the body was
+ * not declared with a Content-Length or is not the length declared.
+ */
+public class MediaBinTeeResponse extends HttpServletResponseWrapper {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinTeeResponse.class);
+
+	private final File tempFile;
+	private OutputStream copy;
+	private TeeOutputStream teeStream = null;
+	private int status = SC_OK;
+	private boolean failed = false;
+	private long contentLength = -1;
+	private long copied = 0;
+
+	/**
+	 * @param response	the response to the client
+	 * @param tempFile	the temporary file the body is copied to
+	 * @throws IOException when the temporary file cannot be opened
+	 */
+	public MediaBinTeeResponse(HttpServletResponse response, File tempFile) throws IOException {
+		super(response);
+		this.tempFile = tempFile;
+		this.copy = new FileOutputStream(tempFile);
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (teeStream == null) {
+			teeStream = new TeeOutputStream(super.getOutputStream());
+		}
+		return teeStream;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		// character data is not what we are expecting from MediaBin, don't keep it
+		failed = true;
+		return super.getWriter();
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		contentLength = len;
+		super.setContentLength(len);
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		recordHeader(name, value);
+		super.setHeader(name, value);
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+		recordHeader(name, value);
+		super.addHeader(name, value);
+	}
+
+	@Override
+	public void setIntHeader(String name, int value) {
+		recordHeader(name, String.valueOf(value));
+		super.setIntHeader(name, value);
+	}
+
+	@Override
+	public void addIntHeader(String name, int value) {
+		recordHeader(name, String.valueOf(value));
+		super.addIntHeader(name, value);
+	}
+
+	private void recordHeader(String name, String value) {
+		if ("Content-Length".equalsIgnoreCase(name)) {
+			try {
+				contentLength = Long.parseLong(value.trim());
+			}
+			catch (NumberFormatException e) {
+				contentLength = -1;
+			}
+		}
+	}
+
+	@Override
+	public void setStatus(int sc) {
+		status = sc;
+		super.setStatus(sc);
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException {
+		status = SC_MOVED_TEMPORARILY;
+		super.sendRedirect(location);
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException {
+		status = sc;
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+		status = sc;
+		super.sendError(sc, msg);
+	}
+
+	/**
+	 * Closes the copy of the body
+	 *
+	 * @return true if the copy holds the complete body of a successful response, which is all of the declared Content-Length
+	 */
+	public boolean finish() {
+		closeCopy();
+		if (failed || status != SC_OK || teeStream == null) {
+			return false;
+		}
+		if (copied != contentLength) {
+			// a stream cut short is not always reported, only a body of the declared length is known to be complete
+			mLogger.warn("Not keeping streamed asset, copied " + copied + " bytes of a Content-Length of " + contentLength + " : " + tempFile.getAbsolutePath());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of bytes copied to the temporary file
+	 */
+	public long getCopiedLength() {
+		return copied;
+	}
+
+	private void closeCopy() {
+		if (copy != null) {
+			try {
+				copy.close();
+			}
+			catch (IOException e) {
+				failed = true;
+				mLogger.warn("Unable to close copy of streamed asset : " + tempFile.getAbsolutePath(), e);
+			}
+			copy = null;
+		}
+	}
+
+	private void copyFailed(IOException e) {
+		mLogger.warn("Unable to copy streamed asset to " + tempFile.getAbsolutePath() + " : " + e.getMessage());
+		failed = true;
+		closeCopy();
+	}
+
+	private class TeeOutputStream extends ServletOutputStream {
+
+		private final ServletOutputStream client;
+
+		TeeOutputStream(ServletOutputStream client) {
+			this.client = client;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			client.write(b);
+			if (!failed) {
+				try {
+					copy.write(b);
+					copied++;
+				}
+				catch (IOException e) {
+					copyFailed(e);
+				}
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			client.write(b, off, len);
+			if (!failed) {
+				try {
+					copy.write(b, off, len);
+					copied += len;
+				}
+				catch (IOException e) {
+					copyFailed(e);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			client.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			client.close();
+		}
+
+	}
+
+}
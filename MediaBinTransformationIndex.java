@@ -0,0 +1,332 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dom4j.Document;
+import org.dom4j.Element;
+
+import com.eu.interflow.livesite.mediabin.MediaBinParameterRegistry.ParameterSet;
+
+/**
+ * Immutable, pre-compiled form of the MediaBin transformations DCR.
+ *
+ * The DCR is walked once when it is (re)loaded and every Source/Asset/Transformation
+ * element is turned into an AssetRule/TransformationRule, so that the render path
+ * only does hash lookups instead of evaluating XPath expressions over the whole
+ * transformations document.
+ */
+public class MediaBinTransformationIndex {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinTransformationIndex.class);
+
+	/**
+	 * Separator used when building the composite lookup keys, it cannot appear in an XML attribute value
+	 */
+	private static final char KEY_SEPARATOR = '\u0000';
+
+	/**
+	 * All the Asset rules of a Source, keyed by (ContentType, TransformationContext), in document order
+	 */
+	private final Map<String, List<AssetRule>> sourceAssets;
+
+	/**
+	 * The Asset rules keyed by (ContentType, TransformationContext, XPath). When the same key
+	 * appears more than once in the DCR, the transformations are merged in document order
+	 */
+	private final Map<String, AssetRule> assets;
+
+	private MediaBinTransformationIndex(Map<String, List<AssetRule>> sourceAssets, Map<String, AssetRule> assets) {
+		this.sourceAssets = sourceAssets;
+		this.assets = assets;
+	}
+
+	/**
+	 * Compiles the passed transformations DCR into an index
+	 *
+	 * @param transformations	the transformations DCR document
+	 * @return the compiled index, never null
+	 */
+	@SuppressWarnings("unchecked")
+	public static MediaBinTransformationIndex compile(Document transformations) {
+
+		Map<String, List<AssetRule>> sourceAssets = new HashMap<String, List<AssetRule>>();
+		Map<String, List<AssetRule>> mergedAssets = new HashMap<String, List<AssetRule>>();
+		int assetCount = 0;
+
+		List sources = transformations.selectNodes("//Source");
+		for (Iterator sourcesIter = sources.iterator(); sourcesIter.hasNext(); ) {
+
+			Element source = (Element) sourcesIter.next();
+			String contentType = source.attributeValue("ContentType");
+			String transformationContext = source.attributeValue("TransformationContext");
+			if (contentType == null || transformationContext == null) {
+				mLogger.warn("Ignoring Source element without ContentType or TransformationContext : " + source.asXML());
+				continue;
+			}
+
+			String sourceKey = key(contentType, transformationContext);
+			List<AssetRule> rules = sourceAssets.get(sourceKey);
+			if (rules == null) {
+				rules = new ArrayList<AssetRule>();
+				sourceAssets.put(sourceKey, rules);
+			}
+
+			for (Iterator assetsIter = source.elements("Asset").iterator(); assetsIter.hasNext(); ) {
+
+				Element asset = (Element) assetsIter.next();
+				String xpath = asset.attributeValue("XPath");
+				if (xpath == null) continue;
+
+				AssetRule rule = compileAsset(asset, xpath);
+				rules.add(rule);
+				assetCount++;
+
+				String assetKey = key(contentType, transformationContext, xpath);
+				List<AssetRule> merged = mergedAssets.get(assetKey);
+				if (merged == null) {
+					merged = new ArrayList<AssetRule>();
+					mergedAssets.put(assetKey, merged);
+				}
+				merged.add(rule);
+			}
+		}
+
+		for (Iterator<Map.Entry<String, List<AssetRule>>> iter = sourceAssets.entrySet().iterator(); iter.hasNext(); ) {
+			Map.Entry<String, List<AssetRule>> entry = iter.next();
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+
+		Map<String, AssetRule> assets = new HashMap<String, AssetRule>();
+		for (Iterator<Map.Entry<String, List<AssetRule>>> iter = mergedAssets.entrySet().iterator(); iter.hasNext(); ) {
+			Map.Entry<String, List<AssetRule>> entry = iter.next();
+			assets.put(entry.getKey(), AssetRule.merge(entry.getValue()));
+		}
+
+		mLogger.info("Compiled Transformations DCR : " + sourceAssets.size() + " sources, " + assetCount + " assets");
+
+		return new MediaBinTransformationIndex(sourceAssets, assets);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static AssetRule compileAsset(Element asset, String xpath) {
+
+		// Some xPath's cannot be used as a folder name, for these a FileSystemFriendlyPath is provided
+		String fileSystemFriendlyPath = asset.attributeValue("FileSystemFriendlyPath");
+		fileSystemFriendlyPath = (fileSystemFriendlyPath == null) ? xpath.replace('/', '_') : fileSystemFriendlyPath.replace('/', '_');
+
+		String assetIdXPath   = asset.attributeValue("AssetIdXPath");
+		String assetPathXPath = asset.attributeValue("AssetPathXPath");
+		if (assetIdXPath != null && assetIdXPath.length() == 0) {
+			assetIdXPath = null;
+		}
+		if (assetIdXPath == null) {
+			mLogger.error("No AssetIdXPath value set in MediaBin transformation Asset element : " + asset.asXML());
+		}
+		if (assetPathXPath != null && assetPathXPath.length() == 0) {
+			assetPathXPath = null;
+		}
+
+		List<TransformationRule> transformations = new ArrayList<TransformationRule>();
+		for (Iterator transformationsIter = asset.elements("Transformation").iterator(); transformationsIter.hasNext(); ) {
+
+			Element transform = (Element) transformationsIter.next();
+
+			ParameterSet txParams = new ParameterSet();
+
+			for (Iterator itr = transform.elements("RuntimeParameter").iterator(); itr.hasNext(); )
+			{
+				Element param = (Element) itr.next();
+				String name = param.attributeValue("ParameterName");
+				String value = param.attributeValue("ParameterValue");
+				if (mLogger.isDebugEnabled()) {
+					mLogger.debug(" >> MediaBin Parameter: " + name + ": " + value);
+				}
+				txParams.add(name, value);
+			}
+
+			transformations.add(new TransformationRule(
+					transform.attributeValue("TransformedName"),
+					transform.attributeValue("TaskName"),
+					transform.attributeValue("ResultExt"),
+					txParams.freeze()
+			));
+		}
+
+		return new AssetRule(xpath, fileSystemFriendlyPath, assetIdXPath, assetPathXPath, Collections.unmodifiableList(transformations));
+	}
+
+	/**
+	 * @param contentType
+	 * @param transformationContext
+	 * @return the Asset rules for the content type and transformation context in document order, an empty list if there are none
+	 */
+	public List<AssetRule> getAssets(String contentType, String transformationContext) {
+		if (contentType == null || transformationContext == null) {
+			// nothing in the DCR can match a missing value
+			return Collections.emptyList();
+		}
+		List<AssetRule> rules = sourceAssets.get(key(contentType, transformationContext));
+		if (rules == null) {
+			return Collections.emptyList();
+		}
+		return rules;
+	}
+
+	/**
+	 * @param contentType
+	 * @param transformationContext
+	 * @param xpath
+	 * @return the Asset rule for the content type, transformation context and xpath, or null if there is none
+	 */
+	public AssetRule getAsset(String contentType, String transformationContext, String xpath) {
+		if (contentType == null || transformationContext == null || xpath == null) {
+			return null;
+		}
+		return assets.get(key(contentType, transformationContext, xpath));
+	}
+
+	private static String key(String contentType, String transformationContext) {
+		return new StringBuffer(contentType.length() + transformationContext.length() + 1)
+			.append(contentType).append(KEY_SEPARATOR).append(transformationContext)
+			.toString();
+	}
+
+	private static String key(String contentType, String transformationContext, String xpath) {
+		return new StringBuffer(contentType.length() + transformationContext.length() + xpath.length() + 2)
+			.append(contentType).append(KEY_SEPARATOR).append(transformationContext).append(KEY_SEPARATOR).append(xpath)
+			.toString();
+	}
+
+	/**
+	 * A compiled Asset element of the transformations DCR
+	 */
+	public static class AssetRule {
+
+		private final String xpath;
+		private final String fileSystemFriendlyPath;
+		private final String assetIdXPath;
+		private final String assetPathXPath;
+		private final List<TransformationRule> transformations;
+
+		AssetRule(String xpath, String fileSystemFriendlyPath, String assetIdXPath, String assetPathXPath, List<TransformationRule> transformations) {
+			this.xpath = xpath;
+			this.fileSystemFriendlyPath = fileSystemFriendlyPath;
+			this.assetIdXPath = assetIdXPath;
+			this.assetPathXPath = assetPathXPath;
+			this.transformations = transformations;
+		}
+
+		/**
+		 * Merges rules sharing the same key, the first rule provides the paths
+		 */
+		static AssetRule merge(List<AssetRule> rules) {
+			AssetRule first = rules.get(0);
+			if (rules.size() == 1) {
+				return first;
+			}
+			List<TransformationRule> transformations = new ArrayList<TransformationRule>();
+			for (Iterator<AssetRule> iter = rules.iterator(); iter.hasNext(); ) {
+				transformations.addAll(iter.next().getTransformations());
+			}
+			return new AssetRule(first.xpath, first.fileSystemFriendlyPath, first.assetIdXPath, first.assetPathXPath, Collections.unmodifiableList(transformations));
+		}
+
+		/**
+		 * @return the XPath attribute, the location of the MediaBin asset within the source DCR
+		 */
+		public String getXPath() {
+			return xpath;
+		}
+
+		/**
+		 * @return the FileSystemFriendlyPath attribute (or the XPath if not set) with slashes replaced
+		 */
+		public String getFileSystemFriendlyPath() {
+			return fileSystemFriendlyPath;
+		}
+
+		/**
+		 * @return the AssetIdXPath attribute, or null if it is not set
+		 */
+		public String getAssetIdXPath() {
+			return assetIdXPath;
+		}
+
+		/**
+		 * @return the AssetPathXPath attribute, or null if it is not set
+		 */
+		public String getAssetPathXPath() {
+			return assetPathXPath;
+		}
+
+		/**
+		 * @return the transformations to apply to the asset, in document order
+		 */
+		public List<TransformationRule> getTransformations() {
+			return transformations;
+		}
+
+	}
+
+	/**
+	 * A compiled Transformation element of the transformations DCR
+	 */
+	public static class TransformationRule {
+
+		private final String transformedName;
+		private final String taskName;
+		private final String resultExt;
+		private final ParameterSet parameters;
+
+		TransformationRule(String transformedName, String taskName, String resultExt, ParameterSet parameters) {
+			this.transformedName = transformedName;
+			this.taskName = taskName;
+			this.resultExt = resultExt;
+			this.parameters = parameters;
+		}
+
+		/**
+		 * @return the TransformedName attribute
+		 */
+		public String getTransformedName() {
+			return transformedName;
+		}
+
+		/**
+		 * @return the TaskName attribute
+		 */
+		public String getTaskName() {
+			return taskName;
+		}
+
+		/**
+		 * @return the ResultExt attribute
+		 */
+		public String getResultExt() {
+			return resultExt;
+		}
+
+		/**
+		 * @return the converted runtime parameters of the transformation, shared between requests and unmodifiable
+		 */
+		public ParameterSet getParameters() {
+			return parameters;
+		}
+
+		/**
+		 * @return the suffix built from the runtime parameter values, used in the transformed filename
+		 */
+		public String getNameParams() {
+			return parameters.getNameParams();
+		}
+
+	}
+
+}
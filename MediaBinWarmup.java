@@ -0,0 +1,181 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Restores what is known about assets and imported files on startup, so that the first renders
+ * after a restart do not check every asset against MediaBin and stat every file.
+ *
+ * The modified times of assets are kept by the MediaBinMetadataStore, which is opened here. The
+ * MediaBinImportIndex is written to Settings.getWarmupFile() every Settings.getWarmupSaveInterval()
+ * and when the JVM shuts down, and is loaded again on startup. The loaded index entries are
+ * checked against the filesystem, in the background, the first time they are used.
+ */
+public class MediaBinWarmup {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinWarmup.class);
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static File warmupFile = Settings.getWarmupFile();
+
+	private static int saveInterval = Settings.getWarmupSaveInterval();
+
+	private static AtomicBoolean started = new AtomicBoolean(false);
+
+	/**
+	 * Saves the snapshot and closes the metadata store when the JVM shuts down, removed by stop()
+	 */
+	private static Thread shutdownHook = null;
+
+	/**
+	 * Opens the metadata store, loads the snapshot and starts saving it, only the first call does anything
+	 */
+	public static void start() {
+		if (!started.compareAndSet(false, true)) {
+			return;
+		}
+
+		if (Settings.isMetadataStoreEnabled()) {
+			MediaBinMetadataStore.open();
+		}
+
+		final boolean warmupEnabled = Settings.isWarmupEnabled();
+		if (warmupEnabled) {
+			load();
+			if (saveInterval > 0) {
+				schedulePeriodicSave();
+			}
+		}
+
+		shutdownHook = new Thread("MediaBin-warmup-save") {
+			public void run() {
+				if (warmupEnabled) {
+					save();
+				}
+				MediaBinMetadataStore.close();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Does what the shutdown hook would, now, and removes the hook, for when the web application is stopped
+	 * without the JVM stopping. The hook would otherwise keep the classes of the web application loaded
+	 */
+	public static synchronized void stop() {
+		if (shutdownHook == null) {
+			return;
+		}
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		}
+		catch (IllegalStateException e) {
+			// the JVM is shutting down, and the hook is running or about to
+			return;
+		}
+		shutdownHook.run();
+		shutdownHook = null;
+	}
+
+	/**
+	 * Writes the snapshot now
+	 */
+	public static synchronized void save() {
+		File parentDir = warmupFile.getAbsoluteFile().getParentFile();
+		File tempFile = null;
+		DataOutputStream out = null;
+		try {
+			if (!parentDir.exists() && !parentDir.mkdirs()) {
+				throw new IOException("Unable to create directory " + parentDir.getAbsolutePath());
+			}
+			// written to a temporary file and renamed, so a crash while saving leaves the previous snapshot
+			tempFile = File.createTempFile(warmupFile.getName() + ".", null, parentDir);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(FORMAT_VERSION);
+			MediaBinImportIndex.save(out);
+			out.close();
+			out = null;
+
+			if (!tempFile.renameTo(warmupFile) && !(warmupFile.delete() && tempFile.renameTo(warmupFile))) {
+				throw new IOException("Unable to rename " + tempFile.getAbsolutePath());
+			}
+			mLogger.info("Saved warm-up snapshot of " + MediaBinImportIndex.size() + " files to " + warmupFile.getAbsolutePath());
+		}
+		catch (IOException e) {
+			mLogger.warn("Unable to save warm-up snapshot to " + warmupFile.getAbsolutePath() + " : " + e.getMessage());
+			if (out != null) {
+				try {
+					out.close();
+				}
+				catch (IOException ignored) {
+				}
+			}
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+	}
+
+	private static void load() {
+		if (!warmupFile.exists()) {
+			return;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(warmupFile)));
+			if (in.readInt() != FORMAT_VERSION) {
+				mLogger.info("Ignoring warm-up snapshot written by another version : " + warmupFile.getAbsolutePath());
+				return;
+			}
+
+			MediaBinImportIndex.load(in);
+			mLogger.info("Loaded warm-up snapshot of " + MediaBinImportIndex.size() + " files from " + warmupFile.getAbsolutePath());
+		}
+		catch (IOException e) {
+			// whatever was loaded is still useful, the rest is rebuilt as pages are rendered
+			mLogger.warn("Unable to read warm-up snapshot from " + warmupFile.getAbsolutePath() + " : " + e.getMessage());
+		}
+		finally {
+			if (in != null) {
+				try {
+					in.close();
+				}
+				catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	private static void schedulePeriodicSave() {
+		MediaBinWorkQueue.schedule(new Runnable() {
+			public void run() {
+				try {
+					save();
+				}
+				finally {
+					try {
+						schedulePeriodicSave();
+					}
+					catch (RejectedExecutionException e) {
+						// the web application has been stopped
+					}
+				}
+			}
+		}, saveInterval);
+	}
+
+}
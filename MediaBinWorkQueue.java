@@ -0,0 +1,325 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The bounded, prioritised queue of work that is sent to MediaBin.
+ *
+ * At most Settings.getMaxConnections() requests run at once. Queued requests are run
+ * highest priority first, then in the order they were queued. When the queue holds
+ * Settings.getQueueCapacity() requests, new requests are handled according to
+ * Settings.getQueueRejectionPolicy(). Only a caller that waits for its request anyway
+ * lets the request run on its own thread, requests from a render are rejected instead,
+ * leaving the placeholder for the next render to try again.
+ *
+ * Requests for the same file are not queued twice, this is taken care of by the
+ * MediaBinImportRegistry before requests reach the queue.
+ */
+public class MediaBinWorkQueue {
+
+	private static Log mLogger = LogFactory.getLog(MediaBinWorkQueue.class);
+
+	/**
+	 * Priority lanes of the queue, in the order they are served
+	 */
+	public enum Priority {
+		/** a file that does not exist yet, the page is showing a broken link until it is imported */
+		HIGH,
+		/** a file that is known to be out of date */
+		NORMAL,
+		/** files that exist but need to be checked against MediaBin */
+		LOW
+	}
+
+	/**
+	 * What to do with a request when the queue is full
+	 */
+	public enum RejectionPolicy {
+		/** reject the new request */
+		REJECT,
+		/** run the new request on the calling thread, if the caller allows it, otherwise reject it */
+		CALLER_RUNS,
+		/** drop the newest queued request of the lowest priority, if that is lower than the new request, otherwise reject the new request */
+		DISCARD_LOWEST;
+
+		/**
+		 * @param value	the mediabin-queue-rejection-policy property, e.g. "discard-lowest"
+		 * @return the matching policy
+		 * @throws IllegalArgumentException when the value does not match a policy
+		 */
+		public static RejectionPolicy fromProperty(String value) {
+			return valueOf(value.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	private static int capacity = Settings.getQueueCapacity();
+
+	private static RejectionPolicy rejectionPolicy = Settings.getQueueRejectionPolicy();
+
+	private static PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>();
+
+	private static ThreadPoolExecutor pool = new ThreadPoolExecutor(
+			Settings.getMaxConnections(), Settings.getMaxConnections(),
+			0L, TimeUnit.MILLISECONDS,
+			queue,
+			new NamedThreadFactory("MediaBin-worker")
+	);
+
+	/**
+	 * Runs delayed and periodic housekeeping, work that talks to MediaBin must be queued rather than run on this thread
+	 */
+	private static ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("MediaBin-timer"));
+
+	private static AtomicLong sequence = new AtomicLong();
+
+	private static AtomicInteger queued    = new AtomicInteger();
+	private static AtomicInteger inFlight  = new AtomicInteger();
+	private static AtomicLong    started   = new AtomicLong();
+	private static AtomicLong    rejected  = new AtomicLong();
+	private static AtomicLong    totalWaitNanos = new AtomicLong();
+	private static AtomicLong    maxWaitNanos   = new AtomicLong();
+
+	/**
+	 * Queues a request to be sent to MediaBin, the request is never run on the calling thread
+	 *
+	 * @param request	the request to run
+	 * @param priority	the lane to queue the request in
+	 * @throws RejectedExecutionException when the queue is full and the request was not accepted
+	 */
+	public static void execute(Runnable request, Priority priority) {
+		execute(request, priority, false);
+	}
+
+	/**
+	 * Queues a request to be sent to MediaBin
+	 *
+	 * @param request		the request to run
+	 * @param priority		the lane to queue the request in
+	 * @param callerMayRun	true if the request may be run on the calling thread when the queue is full and the 
+	 *						policy is CALLER_RUNS, only for callers that wait for the request anyway
+	 * @throws RejectedExecutionException when the queue is full and the request was not accepted
+	 */
+	public static void execute(Runnable request, Priority priority, boolean callerMayRun) {
+
+		PrioritizedRequest task = new PrioritizedRequest(request, priority, sequence.incrementAndGet());
+
+		if (queued.incrementAndGet() > capacity) {
+			queued.decrementAndGet();
+
+			RejectionPolicy policy = rejectionPolicy;
+			if (policy == RejectionPolicy.CALLER_RUNS && !callerMayRun) {
+				// a render must not wait for a whole import, it leaves the placeholder for the next render
+				policy = RejectionPolicy.REJECT;
+			}
+
+			switch (policy) {
+				case CALLER_RUNS:
+					if (mLogger.isDebugEnabled()) {
+						mLogger.debug("MediaBin queue full, running request on the calling thread : " + request);
+					}
+					request.run();
+					return;
+
+				case DISCARD_LOWEST:
+					if (discardLowerThan(priority)) {
+						// the freed slot may already have been taken by another thread, in which case we reject
+						if (queued.incrementAndGet() <= capacity) {
+							break;
+						}
+						queued.decrementAndGet();
+					}
+					// fall through
+
+				default:
+					rejected.incrementAndGet();
+					throw new RejectedExecutionException("MediaBin queue is full (" + capacity + " requests), rejected " + priority + " request");
+			}
+		}
+
+		pool.execute(task);
+	}
+
+	/**
+	 * Runs the task once on the housekeeping thread after the delay
+	 *
+	 * @param task			the task, which must be quick and must not call MediaBin
+	 * @param delayMillis	the delay in milliseconds
+	 */
+	public static void schedule(Runnable task, long delayMillis) {
+		timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the workers and the housekeeping thread, for when the web application is stopped. Requests that 
+	 * are still queued are cancelled, requests being run are interrupted
+	 */
+	public static void shutdown() {
+		timer.shutdownNow();
+		for (Iterator<Runnable> iter = pool.shutdownNow().iterator(); iter.hasNext(); ) {
+			PrioritizedRequest task = (PrioritizedRequest) iter.next();
+			if (task.request instanceof Future) {
+				// lets the import registry remove the placeholder and give the connection back
+				((Future<?>) task.request).cancel(false);
+			}
+		}
+		mLogger.info("MediaBin work queue shut down");
+	}
+
+	/**
+	 * Removes the newest queued request of the lowest priority, if its priority is lower than the passed priority
+	 *
+	 * @return true if a request was removed
+	 */
+	private static boolean discardLowerThan(Priority priority) {
+		PrioritizedRequest lowest = null;
+		for (Iterator<Runnable> iter = queue.iterator(); iter.hasNext(); ) {
+			PrioritizedRequest candidate = (PrioritizedRequest) iter.next();
+			if (lowest == null || candidate.compareTo(lowest) > 0) {
+				lowest = candidate;
+			}
+		}
+
+		if (lowest == null || lowest.priority.compareTo(priority) <= 0 || !queue.remove(lowest)) {
+			return false;
+		}
+
+		queued.decrementAndGet();
+		rejected.incrementAndGet();
+		if (lowest.request instanceof Future) {
+			// let anyone waiting on the request know it will not happen
+			((Future<?>) lowest.request).cancel(false);
+		}
+		mLogger.info("MediaBin queue full, discarded " + lowest.priority + " request to make room for a " + priority + " request");
+		return true;
+	}
+
+	/**
+	 * @return the number of requests waiting in the queue
+	 */
+	public static int getQueueDepth() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the maximum number of requests that can wait in the queue
+	 */
+	public static int getQueueCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of requests currently being run
+	 */
+	public static int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return the number of requests that have been taken off the queue and started
+	 */
+	public static long getStartedCount() {
+		return started.get();
+	}
+
+	/**
+	 * @return the number of requests rejected or discarded because the queue was full
+	 */
+	public static long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the average time in milliseconds requests have waited in the queue before starting
+	 */
+	public static long getAverageWaitMillis() {
+		long count = started.get();
+		return (count == 0) ? 0 : totalWaitNanos.get() / count / 1000000L;
+	}
+
+	/**
+	 * @return the longest time in milliseconds a request has waited in the queue before starting
+	 */
+	public static long getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1000000L;
+	}
+
+	/**
+	 * A queued request, ordered by priority and then by the order it was queued in
+	 */
+	private static class PrioritizedRequest implements Runnable, Comparable<PrioritizedRequest> {
+
+		final Runnable request;
+		final Priority priority;
+		final long sequence;
+		final long queuedAt = System.nanoTime();
+
+		PrioritizedRequest(Runnable request, Priority priority, long sequence) {
+			this.request = request;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(PrioritizedRequest other) {
+			int diff = priority.compareTo(other.priority);
+			if (diff != 0) {
+				return diff;
+			}
+			return (sequence < other.sequence) ? -1 : ((sequence > other.sequence) ? 1 : 0);
+		}
+
+		public void run() {
+			queued.decrementAndGet();
+			started.incrementAndGet();
+
+			long wait = System.nanoTime() - queuedAt;
+			totalWaitNanos.addAndGet(wait);
+			long max = maxWaitNanos.get();
+			while (wait > max && !maxWaitNanos.compareAndSet(max, wait)) {
+				max = maxWaitNanos.get();
+			}
+
+			inFlight.incrementAndGet();
+			try {
+				request.run();
+			}
+			finally {
+				inFlight.decrementAndGet();
+			}
+		}
+
+	}
+
+	/**
+	 * Creates named daemon threads, so the workers can be identified in thread dumps and do not hold up shutdown
+	 */
+	static class NamedThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+
+	}
+
+}
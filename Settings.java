@@ -5,6 +5,7 @@
  */
 package com.eu.interflow.livesite.mediabin;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Enumeration;
 import java.util.NoSuchElementException;
@@ -30,6 +31,26 @@ public class Settings {
 	private static final int defaultUpdateCheckInterval = 3600000; // time in milliseconds
 	private static final String defaultTransformationsDCRPath = "/templatedata/system/mediabin-transformations/data/transformations.xml";
 	private static final int defaultTransformationRefreshInterval = 3600000; // time in milliseconds
+	private static final int defaultTransformationsCheckInterval = 5000; // time in milliseconds
+	private static final int defaultTaskCacheTTL = 3600000; // time in milliseconds
+	private static final int defaultRefreshCacheMaxEntries = 50000;
+	private static final int defaultLocalStreamerMaxEntries = 10000;
+	private static final int defaultQueueCapacity = 1000;
+	private static final int defaultFreshnessBatchWindow = 250; // time in milliseconds
+	private static final int defaultFreshnessBatchSize = 100;
+	private static final int defaultConnectionHealthCheckInterval = 60000; // time in milliseconds
+	private static final int defaultAssetCacheTTL = 300000; // time in milliseconds
+	private static final int defaultAssetCacheNegativeTTL = 60000; // time in milliseconds
+	private static final int defaultAssetCacheMaxEntries = 10000;
+	private static final int defaultImportIndexRevalidateInterval = 60000; // time in milliseconds
+	private static final int defaultImportIndexMaxEntries = 200000;
+	private static final int defaultWarmupSaveInterval = 600000; // time in milliseconds
+	private static final int defaultMetadataStoreCompactInterval = 3600000; // time in milliseconds
+	private static final int defaultRenderThreads = 8;
+	private static final int defaultRenderParallelThreshold = 16;
+	private static final int defaultTraceSampleRate = 0;
+	private static final int defaultImportWaitTimeout = 30000; // time in milliseconds
+	private static final MediaBinWorkQueue.RejectionPolicy defaultQueueRejectionPolicy = MediaBinWorkQueue.RejectionPolicy.DISCARD_LOWEST;
 	
 	private static String mediaBinURL;
 	private static int httpTimeout;
@@ -43,6 +64,35 @@ public class Settings {
 	private static String transformationsDCRPath;
 	private static int updateCheckInterval;
 	private static int transformationsRefreshInterval;
+	private static boolean transformationsChangeDetection;
+	private static int transformationsCheckInterval;
+	private static int taskCacheTTL;
+	private static int refreshCacheMaxEntries;
+	private static int localStreamerMaxEntries;
+	private static int queueCapacity;
+	private static MediaBinWorkQueue.RejectionPolicy queueRejectionPolicy;
+	private static int freshnessBatchWindow;
+	private static int freshnessBatchSize;
+	private static int connectionHealthCheckInterval;
+	private static boolean httpKeepAlive;
+	private static String serverFactory;
+	private static int assetCacheTTL;
+	private static int assetCacheNegativeTTL;
+	private static int assetCacheMaxEntries;
+	private static int importIndexRevalidateInterval;
+	private static int importIndexMaxEntries;
+	private static String instanceName;
+	private static File extensionCacheFile;
+	private static int renderThreads;
+	private static boolean warmupEnabled;
+	private static File warmupFile;
+	private static int warmupSaveInterval;
+	private static boolean metadataStoreEnabled;
+	private static File metadataStoreFile;
+	private static int metadataStoreCompactInterval;
+	private static int renderParallelThreshold;
+	private static int traceSampleRate;
+	private static int importWaitTimeout;
 	
 	static {
 
@@ -136,9 +186,116 @@ public class Settings {
 			}
 		}
 		
+		String strMode = properties.getProperty("mediabin-transformations-refresh-mode", "interval").trim();
+		if (strMode.equalsIgnoreCase("modified")) {
+			transformationsChangeDetection = true;
+		}
+		else {
+			if (!strMode.equalsIgnoreCase("interval")) {
+				log.error("INVALID mediabin-transformations-refresh-mode value '" + strMode + "' in mediabin.properties, defaulting to interval");
+			}
+			transformationsChangeDetection = false;
+		}
+		transformationsCheckInterval = getIntProperty(properties, "mediabin-transformations-check-interval", defaultTransformationsCheckInterval);
+		
+		taskCacheTTL = getIntProperty(properties, "mediabin-task-cache-ttl", defaultTaskCacheTTL);
+		refreshCacheMaxEntries = getIntProperty(properties, "mediabin-refresh-cache-max-entries", defaultRefreshCacheMaxEntries);
+		localStreamerMaxEntries = getIntProperty(properties, "mediabin-local-streamer-max-entries", defaultLocalStreamerMaxEntries);
+		queueCapacity = getIntProperty(properties, "mediabin-queue-capacity", defaultQueueCapacity);
+		
+		String strPolicy = properties.getProperty("mediabin-queue-rejection-policy");
+		if (strPolicy == null) {
+			queueRejectionPolicy = defaultQueueRejectionPolicy;
+		}
+		else {
+			try {
+				queueRejectionPolicy = MediaBinWorkQueue.RejectionPolicy.fromProperty(strPolicy);
+			} catch (IllegalArgumentException e) {
+				log.error("INVALID mediabin-queue-rejection-policy value '" + strPolicy + "' in mediabin.properties, defaulting to " + defaultQueueRejectionPolicy);
+				queueRejectionPolicy = defaultQueueRejectionPolicy;
+			}
+		}
+		
+		freshnessBatchWindow = getIntProperty(properties, "mediabin-freshness-batch-window", defaultFreshnessBatchWindow);
+		freshnessBatchSize = getIntProperty(properties, "mediabin-freshness-batch-size", defaultFreshnessBatchSize);
+		connectionHealthCheckInterval = getIntProperty(properties, "mediabin-connection-health-check-interval", defaultConnectionHealthCheckInterval);
+		httpKeepAlive = Boolean.valueOf(properties.getProperty("mediabin-http-keep-alive", "true").trim()).booleanValue();
+		serverFactory = properties.getProperty("mediabin-server-factory", "").trim();
+		assetCacheTTL = getIntProperty(properties, "mediabin-asset-cache-ttl", defaultAssetCacheTTL);
+		assetCacheNegativeTTL = getIntProperty(properties, "mediabin-asset-cache-negative-ttl", defaultAssetCacheNegativeTTL);
+		assetCacheMaxEntries = getIntProperty(properties, "mediabin-asset-cache-max-entries", defaultAssetCacheMaxEntries);
+		importIndexRevalidateInterval = getIntProperty(properties, "mediabin-import-index-revalidate-interval", defaultImportIndexRevalidateInterval);
+		importIndexMaxEntries = getIntProperty(properties, "mediabin-import-index-max-entries", defaultImportIndexMaxEntries);
+		
+		instanceName = properties.getProperty("mediabin-instance-name", "").trim();
+		if (instanceName.length() == 0) {
+			instanceName = defaultInstanceName();
+		}
+		
+		String strFile = properties.getProperty("mediabin-extension-cache-file");
+		extensionCacheFile = (strFile == null || strFile.trim().length() == 0) ? getInstanceFile("mediabin-extensions", ".properties") : new File(strFile.trim());
+		
+		warmupEnabled = Boolean.valueOf(properties.getProperty("mediabin-warmup-enabled", "true").trim()).booleanValue();
+		strFile = properties.getProperty("mediabin-warmup-file");
+		warmupFile = (strFile == null || strFile.trim().length() == 0) ? getInstanceFile("mediabin-warmup", ".dat") : new File(strFile.trim());
+		warmupSaveInterval = getIntProperty(properties, "mediabin-warmup-save-interval", defaultWarmupSaveInterval);
+		
+		metadataStoreEnabled = Boolean.valueOf(properties.getProperty("mediabin-metadata-store-enabled", "true").trim()).booleanValue();
+		strFile = properties.getProperty("mediabin-metadata-store-file");
+		metadataStoreFile = (strFile == null || strFile.trim().length() == 0) ? getInstanceFile("mediabin-metadata", ".log") : new File(strFile.trim());
+		metadataStoreCompactInterval = getIntProperty(properties, "mediabin-metadata-store-compact-interval", defaultMetadataStoreCompactInterval);
+		
+		renderThreads = getIntProperty(properties, "mediabin-render-threads", defaultRenderThreads);
+		renderParallelThreshold = getIntProperty(properties, "mediabin-render-parallel-threshold", defaultRenderParallelThreshold);
+		traceSampleRate = getIntProperty(properties, "mediabin-trace-sample-rate", defaultTraceSampleRate);
+		importWaitTimeout = getIntProperty(properties, "mediabin-import-wait-timeout", defaultImportWaitTimeout);
 		
 	}
 
+	/**
+	 * Reads an integer property, falling back to the default when it is not set or is invalid
+	 * 
+	 * @param properties	the loaded mediabin.properties
+	 * @param name			the property name
+	 * @param defaultValue	the value to use when the property is not set or is invalid
+	 * @return the property value
+	 */
+	private static int getIntProperty(Properties properties, String name, int defaultValue) {
+		String strInt = properties.getProperty(name);
+		if (strInt == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(strInt.trim());
+		} catch (NumberFormatException e) {
+			log.error("INVALID " + name + " value '" + strInt + "' in mediabin.properties, defaulting to " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Names this JVM after the directory it runs from, so that JVMs sharing a temp directory 
+	 * do not share the files that default to it
+	 * 
+	 * @return the default instance name
+	 */
+	private static String defaultInstanceName() {
+		String dir = System.getProperty("catalina.base");
+		if (dir == null) {
+			dir = System.getProperty("user.dir");
+		}
+		return Integer.toHexString(new File(dir).getAbsolutePath().hashCode());
+	}
+
+	/**
+	 * @param prefix	the start of the file name
+	 * @param suffix	the end of the file name
+	 * @return a file in the JVM temp directory, named for this instance
+	 */
+	private static File getInstanceFile(String prefix, String suffix) {
+		return new File(System.getProperty("java.io.tmpdir"), prefix + "-" + instanceName + suffix);
+	}
+
 	/**
 	 * @return the url to access the MediaBin webservice
 	 */
@@ -181,7 +338,29 @@ public class Settings {
 	}
 
 	/**
-	 * @return the maximum number of threads we will have connecting to MediaBin at any one time
+	 * @return true if the connections to the MediaBin web service should use HTTP keep-alive
+	 */
+	public static boolean isHttpKeepAlive() {
+		return httpKeepAlive;
+	}
+
+	/**
+	 * @return the class name of the MediaBinConnectionManager.ServerFactory to build connections with, empty to connect to mediabin-url
+	 */
+	public static String getServerFactory() {
+		return serverFactory;
+	}
+
+	/**
+	 * @return the time in milliseconds a pooled MediaBin connection can be idle before it is checked before reuse
+	 */
+	public static int getConnectionHealthCheckInterval() {
+		return connectionHealthCheckInterval;
+	}
+
+	/**
+	 * @return the maximum number of threads we will have connecting to MediaBin at any one time, 
+	 *         also the maximum number of idle connections kept by the MediaBinConnectionManager
 	 */
 	public static int getMaxConnections() {
 		return maxConnections;
@@ -208,6 +387,188 @@ public class Settings {
 		return transformationsRefreshInterval;
 	}
 	
+	/**
+	 * @return true to read the transformations DCR again only when its modification time changes, false to read it every getTransformationsRefreshInterval()
+	 */
+	public static boolean isTransformationsChangeDetection() {
+		return transformationsChangeDetection;
+	}
+	
+	/**
+	 * @return time in milliseconds between checks of the modification time of the transformations DCR
+	 */
+	public static int getTransformationsCheckInterval() {
+		return transformationsCheckInterval;
+	}
+	
+	/**
+	 * @return the time in milliseconds a MediaBin task definition is cached before it is fetched again
+	 */
+	public static int getTaskCacheTTL() {
+		return taskCacheTTL;
+	}
+	
+	/**
+	 * @return the maximum number of assets whose last modified time is held in the MediaBinRefreshCache
+	 */
+	public static int getRefreshCacheMaxEntries() {
+		return refreshCacheMaxEntries;
+	}
+	
+	/**
+	 * @return the maximum number of imported files the MediaBinLocalStreamer knows of
+	 */
+	public static int getLocalStreamerMaxEntries() {
+		return localStreamerMaxEntries;
+	}
+	
+	/**
+	 * @return the maximum number of requests waiting in the MediaBinWorkQueue
+	 */
+	public static int getQueueCapacity() {
+		return queueCapacity;
+	}
+	
+	/**
+	 * @return what to do with new requests when the MediaBinWorkQueue is full
+	 */
+	public static MediaBinWorkQueue.RejectionPolicy getQueueRejectionPolicy() {
+		return queueRejectionPolicy;
+	}
+	
+	/**
+	 * @return the time in milliseconds imported files are collected for before their freshness is checked in one batch
+	 */
+	public static int getFreshnessBatchWindow() {
+		return freshnessBatchWindow;
+	}
+	
+	/**
+	 * @return the maximum number of imported files checked for freshness in one batch
+	 */
+	public static int getFreshnessBatchSize() {
+		return freshnessBatchSize;
+	}
+	
+	/**
+	 * @return the time in milliseconds the MediaBinAssetCache keeps assets and container ids that were found
+	 */
+	public static int getAssetCacheTTL() {
+		return assetCacheTTL;
+	}
+	
+	/**
+	 * @return the time in milliseconds the MediaBinAssetCache remembers that an asset or container was not found
+	 */
+	public static int getAssetCacheNegativeTTL() {
+		return assetCacheNegativeTTL;
+	}
+	
+	/**
+	 * @return the maximum number of assets, and of containers, held in the MediaBinAssetCache
+	 */
+	public static int getAssetCacheMaxEntries() {
+		return assetCacheMaxEntries;
+	}
+	
+	/**
+	 * @return time in milliseconds after which an entry in the MediaBinImportIndex is checked against the filesystem again
+	 */
+	public static int getImportIndexRevalidateInterval() {
+		return importIndexRevalidateInterval;
+	}
+	
+	/**
+	 * @return the maximum number of files, and of directories, held in the MediaBinImportIndex
+	 */
+	public static int getImportIndexMaxEntries() {
+		return importIndexMaxEntries;
+	}
+	
+	/**
+	 * @return the name of this instance, used to name the files that default to the JVM temp directory
+	 */
+	public static String getInstanceName() {
+		return instanceName;
+	}
+	
+	/**
+	 * @return the file the MediaBinExtensionCache is kept in
+	 */
+	public static File getExtensionCacheFile() {
+		return extensionCacheFile;
+	}
+	
+	/**
+	 * @return true to keep the import index across restarts, see MediaBinWarmup
+	 */
+	public static boolean isWarmupEnabled() {
+		return warmupEnabled;
+	}
+	
+	/**
+	 * @return the file the MediaBinWarmup snapshot is kept in, by default one of this instance's own in the JVM temp directory
+	 */
+	public static File getWarmupFile() {
+		return warmupFile;
+	}
+	
+	/**
+	 * @return time in milliseconds between saves of the MediaBinWarmup snapshot, 0 to only save it at shutdown
+	 */
+	public static int getWarmupSaveInterval() {
+		return warmupSaveInterval;
+	}
+	
+	/**
+	 * @return true to keep the modified times of assets across restarts, see MediaBinMetadataStore
+	 */
+	public static boolean isMetadataStoreEnabled() {
+		return metadataStoreEnabled;
+	}
+	
+	/**
+	 * @return the file the MediaBinMetadataStore log is kept in
+	 */
+	public static File getMetadataStoreFile() {
+		return metadataStoreFile;
+	}
+	
+	/**
+	 * @return time in milliseconds between compactions of the MediaBinMetadataStore log, 0 to never compact it
+	 */
+	public static int getMetadataStoreCompactInterval() {
+		return metadataStoreCompactInterval;
+	}
+	
+	/**
+	 * @return the number of threads the imports of large source DCRs are decided on, 1 or less to decide them on the render thread
+	 */
+	public static int getRenderThreads() {
+		return renderThreads;
+	}
+	
+	/**
+	 * @return the number of elements a source DCR xpath must match before their imports are decided in parallel
+	 */
+	public static int getRenderParallelThreshold() {
+		return renderParallelThreshold;
+	}
+	
+	/**
+	 * @return one in how many importAsset() and importSourceAssets() calls are traced by MediaBinImportTrace, 0 to trace none
+	 */
+	public static int getTraceSampleRate() {
+		return traceSampleRate;
+	}
+	
+	/**
+	 * @return the longest time in milliseconds a MediaBinImportFuture waits for a file being imported by another JVM
+	 */
+	public static int getImportWaitTimeout() {
+		return importWaitTimeout;
+	}
+	
 	/**
 	 * If the webserver on the MediaBin server has authentication setup for the TransferWS
 	 * folder that is used to download the tranformed assets, then this 
@@ -0,0 +1,69 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.mediabin.www.MBRunTimePrimitive;
+import com.mediabin.www.MediaBinServerSoap;
+
+/**
+ * MediaBinRequestUtils.convertRTParameters() against a synthetic task, with the task in the MediaBinTaskCache,
+ * and with it fetched and compiled again on every call as on a cache miss.
+ *
+ * The import context sets every other runtime parameter, the rest take the task defaults.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConvertRTParametersBenchmark {
+
+	private static final String TASK_ID = "{7A5C1E2D-0000-0000-0000-000000000001}";
+
+	@Param({ "4" })
+	public int primitives;
+
+	@Param({ "6" })
+	public int parameters;
+
+	@Param({ "4" })
+	public int elements;
+
+	private MediaBinServerSoap server;
+	private HashMap<String, String> importCtx;
+
+	@Setup
+	public void setUp() {
+		server = MediaBinStubs.server(MediaBinStubs.task(primitives, parameters, elements));
+		importCtx = new HashMap<String, String>();
+		for (int j = 0; j < primitives; j++) {
+			// parameters 0 and 1 are the metadata and compound parameters
+			for (int k = 2; k < parameters; k++) {
+				for (int l = 0; l < elements; l += 2) {
+					importCtx.put(MediaBinStubs.runtimeParameter(j, k, l), String.valueOf(j * k + l));
+				}
+			}
+		}
+		MediaBinTaskCache.invalidateAll();
+	}
+
+	@Benchmark
+	public MBRunTimePrimitive[] cached() throws Exception {
+		return MediaBinRequestUtils.convertRTParameters(server, TASK_ID, importCtx);
+	}
+
+	@Benchmark
+	public MBRunTimePrimitive[] uncached() throws Exception {
+		MediaBinTaskCache.invalidate(TASK_ID);
+		return MediaBinRequestUtils.convertRTParameters(server, TASK_ID, importCtx);
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.eu.interflow.livesite.externals.ILocale;
+import com.interwoven.livesite.runtime.RequestContext;
+
+/**
+ * MediaBinClient.importSourceAssets() rendering a source DCR whose imported files are all up to date, 
+ * against the rules of transformations.xml.sample.
+ *
+ * Each render adds the transformed elements to its own copy of the source DCR, copyDCR() measures the copy alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ImportSourceAssetsBenchmark {
+
+	@Param({ "200" })
+	public int elements;
+
+	private File importDir;
+	private RequestContext context;
+	private ILocale locale;
+	private Element sourceDCR;
+
+	@Setup
+	public void setUp() throws Exception {
+		importDir = MediaBinStubs.createDirectory();
+		context = MediaBinStubs.requestContext();
+		locale = MediaBinStubs.locale();
+		sourceDCR = MediaBinStubs.sourceDCR(elements);
+
+		MediaBinStubs.PathConfig pathConfig = new MediaBinStubs.PathConfig(importDir, "/mediabin/");
+		MediaBinClient.setPathConfig(pathConfig);
+		MediaBinClient.setTransformationsReader(new MediaBinStubs.SampleTransformationsReader());
+		MediaBinConnectionManager.setServerFactory(new MediaBinStubs.CatalogueServerFactory(MediaBinStubs.task(4, 6, 4)));
+		MediaBinStubs.importAll(context, pathConfig, sourceDCR);
+
+		// anything not up to date would be measuring the work queue rather than the render
+		Element rendered = render();
+		for (Iterator iter = rendered.selectNodes("//*[@assetReady]").iterator(); iter.hasNext(); ) {
+			Element transformed = (Element) iter.next();
+			if (!"yes".equals(transformed.attributeValue("assetReady"))) {
+				throw new IllegalStateException("Not imported before the benchmark : " + transformed.getText());
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		MediaBinClient.setPathConfig(null);
+		MediaBinClient.setTransformationsReader(null);
+		MediaBinConnectionManager.setServerFactory(null);
+		MediaBinStubs.delete(importDir);
+	}
+
+	@Benchmark
+	public Element copyDCR() {
+		return sourceDCR.createCopy();
+	}
+
+	@Benchmark
+	public Element render() {
+		Element dcr = sourceDCR.createCopy();
+		if (!MediaBinClient.importSourceAssets(MediaBinStubs.CONTENT_TYPE, MediaBinStubs.TRANSFORMATION_CONTEXT, dcr, context, locale)) {
+			throw new IllegalStateException("importSourceAssets() failed");
+		}
+		return dcr;
+	}
+
+	@Benchmark
+	@Threads(16)
+	public Element renderConcurrently() {
+		return render();
+	}
+
+}
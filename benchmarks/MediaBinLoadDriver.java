@@ -0,0 +1,255 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+
+import org.dom4j.Element;
+
+import com.eu.interflow.livesite.externals.ILocale;
+import com.interwoven.livesite.runtime.RequestContext;
+
+/**
+ * Renders source DCRs with MediaBinClient.importSourceAssets() from many threads at once, against a
+ * MediaBinStandIn, and reports the throughput, the latency of the renders and the MediaBin calls made
+ * for each render.
+ *
+ * Each thread renders DCRs picked at random from a fixed set, without pausing between renders, so the
+ * first renders of each asset import it and the later ones find it imported, as on a live site. The
+ * imports run on the work queue as they would in production, against the latency and errors of the
+ * stand-in. Nothing is recorded during the warm up. Configured by the system properties:
+ *
+ * <pre>
+ * mediabin-load-threads	the number of render threads, default 64
+ * mediabin-load-warmup		seconds before recording starts, default 30
+ * mediabin-load-duration	seconds recorded, default 120
+ * mediabin-load-elements	asset elements in each source DCR, default 200
+ * mediabin-load-dcrs		the number of different source DCRs, default 1000
+ * mediabin-load-assets		the number of assets they are drawn from, default 50000
+ * </pre>
+ *
+ * and the mediabin-standin-* properties of MediaBinStandIn.
+ */
+public class MediaBinLoadDriver {
+
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("mediabin-load-threads", 64).intValue();
+		int warmupSeconds = Integer.getInteger("mediabin-load-warmup", 30).intValue();
+		int durationSeconds = Integer.getInteger("mediabin-load-duration", 120).intValue();
+		int elements = Integer.getInteger("mediabin-load-elements", 200).intValue();
+		int dcrCount = Integer.getInteger("mediabin-load-dcrs", 1000).intValue();
+		int assets = Integer.getInteger("mediabin-load-assets", 50000).intValue();
+
+		MediaBinStandIn standIn = new MediaBinStandIn();
+		File importDir = MediaBinStubs.createDirectory();
+		MediaBinClient.setPathConfig(new MediaBinStubs.PathConfig(importDir, "/mediabin/"));
+		MediaBinClient.setTransformationsReader(new MediaBinStubs.SampleTransformationsReader());
+		MediaBinConnectionManager.setServerFactory(standIn);
+
+		try {
+			Random random = new Random(1);
+			Element[] dcrs = new Element[dcrCount];
+			for (int i = 0; i < dcrCount; i++) {
+				dcrs[i] = MediaBinStubs.sourceDCR(elements, random.nextInt(assets), assets);
+			}
+
+			long measureFrom = System.nanoTime() + warmupSeconds * 1000000000L;
+			long measureUntil = measureFrom + durationSeconds * 1000000000L;
+
+			System.out.println("Rendering " + dcrCount + " source DCRs of " + elements + " elements, drawn from " + assets
+					+ " assets, on " + threads + " threads, importing to " + importDir);
+			Worker[] workers = new Worker[threads];
+			for (int i = 0; i < threads; i++) {
+				workers[i] = new Worker(dcrs, measureFrom, measureUntil);
+				workers[i].start();
+			}
+
+			sleepUntil(measureFrom);
+			SortedMap<String, Long> callsBefore = standIn.getCallCounts();
+			long errorsBefore = standIn.getErrorCount();
+			sleepUntil(measureUntil);
+			SortedMap<String, Long> callsAfter = standIn.getCallCounts();
+			long errorsAfter = standIn.getErrorCount();
+
+			Histogram latencies = new Histogram();
+			long failures = 0;
+			for (int i = 0; i < threads; i++) {
+				workers[i].join();
+				latencies.add(workers[i].latencies);
+				failures += workers[i].failures;
+			}
+
+			report(durationSeconds, latencies, failures, callsBefore, callsAfter, errorsAfter - errorsBefore);
+		}
+		finally {
+			MediaBinClient.setPathConfig(null);
+			MediaBinClient.setTransformationsReader(null);
+			MediaBinConnectionManager.setServerFactory(null);
+			standIn.close();
+			MediaBinStubs.delete(importDir);
+		}
+	}
+
+	private static void report(int durationSeconds, Histogram latencies, long failures,
+			SortedMap<String, Long> callsBefore, SortedMap<String, Long> callsAfter, long errors) {
+		long renders = latencies.getCount();
+		System.out.println(String.format("Renders: %d in %ds, %.1f/s, %d failed",
+				renders, durationSeconds, renders / (double) durationSeconds, failures));
+		System.out.println(String.format("Render latency (ms): p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+				latencies.getPercentile(0.5) / 1000.0, latencies.getPercentile(0.9) / 1000.0, latencies.getPercentile(0.99) / 1000.0,
+				latencies.getPercentile(0.999) / 1000.0, latencies.getMax() / 1000.0));
+
+		long total = 0;
+		StringBuffer byMethod = new StringBuffer();
+		for (Iterator<Map.Entry<String, Long>> iter = callsAfter.entrySet().iterator(); iter.hasNext(); ) {
+			Map.Entry<String, Long> entry = iter.next();
+			Long before = callsBefore.get(entry.getKey());
+			long calls = entry.getValue().longValue() - ((before == null) ? 0 : before.longValue());
+			total += calls;
+			byMethod.append(String.format("  %s: %d, %.3f per render%n", entry.getKey(), calls, perRender(calls, renders)));
+		}
+		System.out.println(String.format("MediaBin calls: %d, %.3f per render, %d failed by the stand-in", total, perRender(total, renders), errors));
+		System.out.print(byMethod);
+		System.out.println("MediaBin metrics, including the warm up:");
+		System.out.print(MediaBinMetrics.dump());
+	}
+
+	private static double perRender(long calls, long renders) {
+		return (renders == 0) ? 0 : calls / (double) renders;
+	}
+
+	private static void sleepUntil(long nanoTime) throws InterruptedException {
+		long wait;
+		while ((wait = nanoTime - System.nanoTime()) > 0) {
+			Thread.sleep(Math.max(1, wait / 1000000L));
+		}
+	}
+
+	/**
+	 * One render thread, recording the renders started between measureFrom and measureUntil
+	 */
+	private static class Worker extends Thread {
+
+		private final Element[] dcrs;
+		private final long measureFrom;
+		private final long measureUntil;
+		private final RequestContext context = MediaBinStubs.requestContext();
+		private final ILocale locale = MediaBinStubs.locale();
+
+		final Histogram latencies = new Histogram();
+		long failures = 0;
+
+		Worker(Element[] dcrs, long measureFrom, long measureUntil) {
+			super("MediaBin-load");
+			this.dcrs = dcrs;
+			this.measureFrom = measureFrom;
+			this.measureUntil = measureUntil;
+		}
+
+		@Override
+		public void run() {
+			Random random = new Random();
+			while (true) {
+				Element dcr = dcrs[random.nextInt(dcrs.length)].createCopy();
+				long start = System.nanoTime();
+				if (start >= measureUntil) {
+					return;
+				}
+				boolean success = MediaBinClient.importSourceAssets(MediaBinStubs.CONTENT_TYPE, MediaBinStubs.TRANSFORMATION_CONTEXT, dcr, context, locale);
+				long end = System.nanoTime();
+				if (start >= measureFrom) {
+					latencies.record(end - start);
+					if (!success) {
+						failures++;
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Counts of latencies in microseconds, to within a sixteenth. Each bucket above 32us covers a sixteenth of
+	 * a power of two, so the tail is kept as precisely as the middle without keeping every latency
+	 */
+	static class Histogram {
+
+		private static final int SUB_BUCKETS = 16;
+
+		private final long[] counts = new long[2 * SUB_BUCKETS + 64 * SUB_BUCKETS];
+		private long count = 0;
+		private long max = 0;
+
+		/**
+		 * @param nanos	the latency
+		 */
+		void record(long nanos) {
+			long micros = nanos / 1000;
+			counts[index(micros)]++;
+			count++;
+			if (micros > max) {
+				max = micros;
+			}
+		}
+
+		/**
+		 * Adds the counts of another histogram to this one
+		 */
+		void add(Histogram other) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += other.counts[i];
+			}
+			count += other.count;
+			max = Math.max(max, other.max);
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the highest latency in microseconds
+		 */
+		long getMax() {
+			return max;
+		}
+
+		/**
+		 * @param fraction	the percentile, from 0 to 1
+		 * @return the latency in microseconds that the fraction of the latencies are at or below
+		 */
+		long getPercentile(double fraction) {
+			long target = (long) Math.ceil(fraction * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= target && seen > 0) {
+					return Math.min(upperBound(i), max);
+				}
+			}
+			return max;
+		}
+
+		private static int index(long micros) {
+			if (micros < 2 * SUB_BUCKETS) {
+				return (int) micros;
+			}
+			// the shift that leaves the top five bits, 16 to 31
+			int shift = 63 - Long.numberOfLeadingZeros(micros) - 4;
+			return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (micros >> shift) - SUB_BUCKETS;
+		}
+
+		private static long upperBound(int index) {
+			if (index < 2 * SUB_BUCKETS) {
+				return index;
+			}
+			int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+			long top = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+			return ((top + 1) << shift) - 1;
+		}
+
+	}
+
+}
@@ -0,0 +1,237 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mediabin.www.MBTask;
+import com.mediabin.www.MediaBinServerSoap;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process MediaBin server for load and soak tests, serving the synthetic catalogue of MediaBinStubs
+ * with configurable latency, error rate and payload size, and counting every call made to it.
+ *
+ * getAsset(), getAssetByName(), getRootContainer(), getContainerByPath() and getTask() are answered from the
+ * catalogue. MediaBinServerSoap is generated from the MediaBin WSDL, so a transformation is any method with
+ * "transform" in its name, and is answered by its return type: the payload for byte[], the URL of the payload
+ * for a String, and for a bean a new instance with its byte[] properties set to the payload and its URL
+ * properties to the URL. The payload is served over HTTP on the loopback interface. Any other call fails.
+ *
+ * Every call waits for the latency, plus a random jitter, and then fails with a RemoteException at the
+ * error rate. Can be named by the mediabin-server-factory setting, in which case it is configured by the
+ * system properties:
+ *
+ * <pre>
+ * mediabin-standin-latency			milliseconds every call takes, default 20
+ * mediabin-standin-latency-jitter	at most this many milliseconds more, default 20
+ * mediabin-standin-error-rate		the fraction of calls that fail, default 0
+ * mediabin-standin-payload-bytes	the size of a transformed asset, default 65536
+ * </pre>
+ */
+public class MediaBinStandIn implements MediaBinConnectionManager.ServerFactory {
+
+	private final long latencyMillis;
+	private final long jitterMillis;
+	private final double errorRate;
+	private final byte[] payload;
+	private final MBTask task;
+
+	private final Map<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong errors = new AtomicLong();
+
+	private final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	private HttpServer payloadServer = null;
+	private ExecutorService payloadExecutor = null;
+
+	/**
+	 * Configured by the mediabin-standin-* system properties
+	 */
+	public MediaBinStandIn() {
+		this(
+				Long.getLong("mediabin-standin-latency", 20).longValue(),
+				Long.getLong("mediabin-standin-latency-jitter", 20).longValue(),
+				Double.parseDouble(System.getProperty("mediabin-standin-error-rate", "0")),
+				Integer.getInteger("mediabin-standin-payload-bytes", 65536).intValue()
+			);
+	}
+
+	/**
+	 * @param latencyMillis	milliseconds every call takes
+	 * @param jitterMillis	at most this many milliseconds more
+	 * @param errorRate		the fraction of calls that fail, from 0 to 1
+	 * @param payloadBytes	the size of a transformed asset
+	 */
+	public MediaBinStandIn(long latencyMillis, long jitterMillis, double errorRate, int payloadBytes) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		this.errorRate = errorRate;
+		this.payload = new byte[payloadBytes];
+		this.task = MediaBinStubs.task(4, 6, 4);
+	}
+
+	public MediaBinServerSoap create() {
+		return MediaBinStubs.proxy(MediaBinServerSoap.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return call(method, args);
+			}
+		});
+	}
+
+	private Object call(Method method, Object[] args) throws Exception {
+		String name = method.getName();
+		count(name);
+
+		Random r = random.get();
+		long wait = latencyMillis + ((jitterMillis > 0) ? (long) (r.nextDouble() * jitterMillis) : 0);
+		if (wait > 0) {
+			Thread.sleep(wait);
+		}
+		if (r.nextDouble() < errorRate) {
+			errors.incrementAndGet();
+			throw new RemoteException("Stand-in error in MediaBinServerSoap." + name + "()");
+		}
+
+		if (name.equals("getTask")) {
+			return task;
+		}
+		if (name.equals("getAsset")) {
+			return MediaBinStubs.asset((String) args[0], "asset.jpg");
+		}
+		if (name.equals("getAssetByName")) {
+			return MediaBinStubs.asset("{" + args[0] + "}", (String) args[0]);
+		}
+		if (name.equals("getRootContainer")) {
+			return MediaBinStubs.container(MediaBinStubs.ROOT_CONTAINER_ID);
+		}
+		if (name.equals("getContainerByPath")) {
+			return MediaBinStubs.container("{" + args[0] + "}");
+		}
+		if (name.toLowerCase().indexOf("transform") >= 0) {
+			return transformation(method.getReturnType());
+		}
+		throw new RemoteException("MediaBinServerSoap." + name + "() is not served by the stand-in");
+	}
+
+	private Object transformation(Class<?> resultType) throws Exception {
+		if (resultType == Void.TYPE) {
+			return null;
+		}
+		if (resultType == byte[].class) {
+			return payload;
+		}
+		if (resultType == String.class) {
+			return getPayloadURL();
+		}
+		Object result = resultType.newInstance();
+		Method[] methods = resultType.getMethods();
+		for (int i = 0; i < methods.length; i++) {
+			Method setter = methods[i];
+			if (!setter.getName().startsWith("set") || setter.getParameterTypes().length != 1) {
+				continue;
+			}
+			if (setter.getParameterTypes()[0] == byte[].class) {
+				setter.invoke(result, new Object[] { payload });
+			}
+			else if (setter.getParameterTypes()[0] == String.class && setter.getName().toUpperCase().indexOf("URL") >= 0) {
+				setter.invoke(result, new Object[] { getPayloadURL() });
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the URL the payload is served at, the server is started the first time it is asked for, and
+	 * serves each request on a thread of its own pool so that concurrent downloads are not queued
+	 * @throws IOException when the server cannot be started
+	 */
+	public synchronized String getPayloadURL() throws IOException {
+		if (payloadServer == null) {
+			payloadServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			payloadServer.createContext("/", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+					exchange.sendResponseHeaders(200, payload.length);
+					OutputStream out = exchange.getResponseBody();
+					try {
+						out.write(payload);
+					} finally {
+						out.close();
+					}
+				}
+			});
+			payloadExecutor = Executors.newCachedThreadPool();
+			payloadServer.setExecutor(payloadExecutor);
+			payloadServer.start();
+		}
+		return "http://127.0.0.1:" + payloadServer.getAddress().getPort() + "/payload";
+	}
+
+	/**
+	 * Stops the payload server and its threads, if it was started
+	 */
+	public synchronized void close() {
+		if (payloadServer != null) {
+			payloadServer.stop(0);
+			payloadServer = null;
+		}
+		if (payloadExecutor != null) {
+			payloadExecutor.shutdownNow();
+			payloadExecutor = null;
+		}
+	}
+
+	private void count(String name) {
+		AtomicLong counter = calls.get(name);
+		if (counter == null) {
+			synchronized (calls) {
+				counter = calls.get(name);
+				if (counter == null) {
+					counter = new AtomicLong();
+					calls.put(name, counter);
+				}
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of calls made to each method so far, by method name
+	 */
+	public SortedMap<String, Long> getCallCounts() {
+		SortedMap<String, Long> counts = new TreeMap<String, Long>();
+		for (Iterator<Map.Entry<String, AtomicLong>> iter = calls.entrySet().iterator(); iter.hasNext(); ) {
+			Map.Entry<String, AtomicLong> entry = iter.next();
+			counts.put(entry.getKey(), new Long(entry.getValue().get()));
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the number of calls that failed at the error rate
+	 */
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+}
@@ -0,0 +1,466 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+import com.eu.interflow.livesite.externals.ILocale;
+import com.eu.interflow.livesite.mediabin.MediaBinTransformationIndex.AssetRule;
+import com.eu.interflow.livesite.mediabin.MediaBinTransformationIndex.TransformationRule;
+import com.interwoven.livesite.runtime.RequestContext;
+import com.mediabin.www.MBAsset;
+import com.mediabin.www.MBContainer;
+import com.mediabin.www.MBParameter;
+import com.mediabin.www.MBParameterElement;
+import com.mediabin.www.MBParameterType;
+import com.mediabin.www.MBPrimitive;
+import com.mediabin.www.MBRunTimeParameterFlags;
+import com.mediabin.www.MBTask;
+import com.mediabin.www.MediaBinServerSoap;
+
+/**
+ * In-process stand-ins for LiveSite and MediaBin, so that the benchmarks run offline.
+ *
+ * RequestContext, ILocale and MediaBinServerSoap are generated or vendor interfaces, so they are
+ * stubbed with proxies that answer the calls the client makes and fail any other. The MediaBin
+ * stub serves a synthetic catalogue, where every asset exists and was last modified at MODIFIED.
+ */
+public class MediaBinStubs {
+
+	/**
+	 * When every asset in the synthetic catalogue was last modified
+	 */
+	public static final long MODIFIED = 1262304000000L;
+
+	public static final String LANGUAGE = "en";
+
+	public static final String ROOT_CONTAINER_ID = "{00000000-0000-0000-0000-000000000000}";
+
+	/**
+	 * The rules of transformations.xml.sample, one asset xpath to a row: content type, transformation
+	 * context, xpath, then a TransformedName=TaskName pair for each transformation
+	 */
+	private static final String[][] RULES = {
+		{ "content/product-details", "ComponentProductDetails", "{language}/InUseImage",
+			"RoundedCornerRight=Interflow - JPG Rounded Corner - Top Right", "GalleryImage=Interflow - JPG" },
+		{ "content/product-details", "ComponentProductDetails", "{language}/ReferenceImage", "GalleryImage=Interflow - JPG" },
+		{ "content/product-details", "ComponentProductDetails", "GalleryImage", "GalleryImage=Interflow - JPG" },
+		{ "content/product-details", "ComponentProductDetails", "{language}/Brochure[1]", "Brochure=(None)" },
+		{ "content/product-details", "ComponentRelatedProducts", "{language}/WireFrameImage", "WireFrame=Interflow - JPG" },
+		{ "content/product-details", "ComponentHighlightedProduct", "{language}/WireFrameImage", "WireFrame=Interflow - JPG" },
+		{ "content/product-details", "ComponentProductCallToAction", "{language}/Brochure", "Brochure=(None)" },
+		{ "content/product-details", "ComponentProductList", "{language}/ReferenceImage", "ListImage=Interflow - JPG" },
+		{ "content/product-details", "ComponentProductList", "{language}/InUseImage", "ListImage=Interflow - JPG" },
+		{ "content/image-small", "ComponentImageSmall", "{language}/MediaBinTest", "ImageSmall=Interflow - JPG" },
+		{ "content/news-item", "ComponentNewsList", "Picture", "ListImage=Interflow - JPG Rounded Corner - Top Right" },
+		{ "content/news-item", "ComponentNewsItem", "Picture",
+			"RoundedCornerRight=Interflow - JPG Rounded Corner - Top Right", "RoundedCornerLeft=Interflow - JPG Rounded Corner - Top Left",
+			"GalleryImage=Interflow - JPG" },
+		{ "content/news-item", "ComponentNewsItem", "GalleryImage", "GalleryImage=Interflow - JPG" },
+		{ "content/news-item", "ComponentNewsItem", "{language}/Document", "Document=(None)" },
+	};
+
+	/**
+	 * The content type and transformation context the source DCR is rendered with, the one with the most rules
+	 */
+	public static final String CONTENT_TYPE = "content/product-details";
+	public static final String TRANSFORMATION_CONTEXT = "ComponentProductDetails";
+
+	/**
+	 * The element names of the xpaths of the rendered rules, under the root or the language element
+	 */
+	private static final String[][] SOURCE_ELEMENTS = {
+		{ LANGUAGE, "InUseImage", ".jpg" },
+		{ LANGUAGE, "ReferenceImage", ".jpg" },
+		{ null, "GalleryImage", ".jpg" },
+		{ LANGUAGE, "Brochure", ".pdf" },
+	};
+
+	/**
+	 * @return the transformations DCR, with the rules of transformations.xml.sample and each asset read from
+	 *         the id and path attributes of its element
+	 */
+	public static Document transformations() {
+		Document document = DocumentHelper.createDocument();
+		Element root = document.addElement("MediaBinTransformation");
+		Element source = null;
+		int width = 80;
+		for (int i = 0; i < RULES.length; i++) {
+			String[] rule = RULES[i];
+			if (source == null || !rule[0].equals(source.attributeValue("ContentType")) || !rule[1].equals(source.attributeValue("TransformationContext"))) {
+				source = root.addElement("Source")
+						.addAttribute("ContentType", rule[0])
+						.addAttribute("TransformationContext", rule[1]);
+			}
+			Element asset = source.addElement("Asset")
+					.addAttribute("XPath", rule[2])
+					.addAttribute("AssetIdXPath", "@id")
+					.addAttribute("AssetPathXPath", "@path");
+			asset.addElement("Comment");
+			for (int j = 3; j < rule.length; j++) {
+				int split = rule[j].indexOf('=');
+				String taskName = rule[j].substring(split + 1);
+				Element transformation = asset.addElement("Transformation")
+						.addAttribute("TransformedName", rule[j].substring(0, split))
+						.addAttribute("TaskName", taskName);
+				if (!taskName.equals("(None)")) {
+					width += 20;
+					transformation.addAttribute("ResultExt", "jpg");
+					transformation.addElement("RuntimeParameter")
+							.addAttribute("ParameterName", "Image Size/Image Sizer Parameters/Output Width")
+							.addAttribute("ParameterValue", String.valueOf(width));
+					transformation.addElement("RuntimeParameter")
+							.addAttribute("ParameterName", "Image Size/Image Sizer Parameters/Constrain Proportions")
+							.addAttribute("ParameterValue", "true");
+				}
+			}
+		}
+		return document;
+	}
+
+	/**
+	 * @param elements	the number of asset elements
+	 * @return the root of a source DCR for CONTENT_TYPE, with the elements spread evenly over the xpaths of its rules
+	 */
+	public static Element sourceDCR(int elements) {
+		return sourceDCR(elements, 0, elements);
+	}
+
+	/**
+	 * @param elements		the number of asset elements
+	 * @param firstAsset	the catalogue index of the asset of the first element, the others follow it
+	 * @param assets		the size of the catalogue, the indexes wrap around at the end of it
+	 * @return the root of a source DCR for CONTENT_TYPE, with the elements spread evenly over the xpaths of its rules
+	 *         and each asset always on the same xpath
+	 */
+	public static Element sourceDCR(int elements, int firstAsset, int assets) {
+		Element root = DocumentHelper.createDocument().addElement("root");
+		Element language = root.addElement(LANGUAGE);
+		for (int i = 0; i < elements; i++) {
+			int asset = (firstAsset + i) % assets;
+			String[] source = SOURCE_ELEMENTS[asset % SOURCE_ELEMENTS.length];
+			Element parent = (source[0] == null) ? root : language;
+			parent.addElement(source[1])
+					.addAttribute("id", assetId(asset))
+					.addAttribute("path", "/Assets/Products/" + source[1] + "-" + asset + source[2]);
+		}
+		return root;
+	}
+
+	/**
+	 * @param i
+	 * @return the id of the i'th asset of the synthetic catalogue
+	 */
+	public static String assetId(int i) {
+		String hex = Integer.toHexString(i);
+		return "{00000000-0000-0000-0000-" + "000000000000".substring(hex.length()) + hex + "}";
+	}
+
+	/**
+	 * Creates the imported file of every transformation of the source DCR, named as MediaBinClient names them,
+	 * and records the assets as checked, so that rendering the DCR finds every file up to date
+	 *
+	 * @param context		the request context the DCR is rendered with
+	 * @param pathConfig	the path config the DCR is rendered with
+	 * @param sourceDCRRoot	the source DCR
+	 * @throws DocumentException
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static void importAll(RequestContext context, MediaBinClientPathConfig pathConfig, Element sourceDCRRoot) throws DocumentException, IOException {
+		ILocale locale = locale();
+		List<AssetRule> assets = MediaBinClient.getTransformations(context).getAssets(CONTENT_TYPE, TRANSFORMATION_CONTEXT);
+		for (Iterator<AssetRule> assetsIter = assets.iterator(); assetsIter.hasNext(); ) {
+			AssetRule asset = assetsIter.next();
+			List dcrElements = sourceDCRRoot.selectNodes(locale.replaceLocale(asset.getXPath()));
+			for (Iterator<TransformationRule> transformationsIter = asset.getTransformations().iterator(); transformationsIter.hasNext(); ) {
+				TransformationRule transform = transformationsIter.next();
+				for (Iterator dcrElemIter = dcrElements.iterator(); dcrElemIter.hasNext(); ) {
+					Element dcrElement = (Element) dcrElemIter.next();
+					String assetId = dcrElement.valueOf(asset.getAssetIdXPath());
+					String assetPath = dcrElement.valueOf(asset.getAssetPathXPath());
+					String filename = assetPath.substring(assetPath.lastIndexOf('/') + 1);
+					if (!transform.getTaskName().equals("(None)")) {
+						filename = filename + "_" + transform.getTaskName() + transform.getNameParams() + "." + transform.getResultExt();
+					}
+					File file = pathConfig.getFile(context, CONTENT_TYPE + "/" + asset.getFileSystemFriendlyPath() + "/"
+							+ assetId.replaceAll("[{}-]", "") + "/" + filename);
+					if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+						throw new IOException("Unable to create " + file.getParentFile());
+					}
+					if (!file.exists() && !file.createNewFile()) {
+						throw new IOException("Unable to create " + file);
+					}
+					MediaBinImportIndex.update(file);
+					MediaBinRefreshCache.setModifiedTime(assetId, MODIFIED);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a new empty directory
+	 * @throws IOException
+	 */
+	public static File createDirectory() throws IOException {
+		File dir = File.createTempFile("mediabin-bench.", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * Deletes a directory and everything in it
+	 *
+	 * @param dir
+	 */
+	public static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				delete(files[i]);
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * A synthetic task, each primitive having one metadata parameter, which is not sent back with a transformation,
+	 * one compound parameter, whose elements are sent back with their defaults, and the rest runtime parameters
+	 *
+	 * @param primitives	the number of primitives
+	 * @param parameters	the number of parameters of each primitive, at least 2
+	 * @param elements		the number of elements of each parameter
+	 * @return the task
+	 */
+	public static MBTask task(int primitives, int parameters, int elements) {
+		MBPrimitive[] prims = new MBPrimitive[primitives];
+		for (int j = 0; j < primitives; j++) {
+			MBParameter[] params = new MBParameter[parameters];
+			for (int k = 0; k < parameters; k++) {
+				Object[] paramElements = new Object[elements];
+				for (int l = 0; l < elements; l++) {
+					MBParameterElement pe = new MBParameterElement();
+					pe.setMName(elementName(l));
+					pe.setMValue("default");
+					if (k < 2) {
+						pe.setMFlag(MBRunTimeParameterFlags.RTPNone);
+					}
+					// otherwise left unset, any flag but RTPNone makes a runtime parameter and the names of the others are not relied on
+					paramElements[l] = pe;
+				}
+				MBParameter param = new MBParameter();
+				param.setMName(parameterName(k));
+				param.setMType((k == 0) ? MBParameterType.Metadata : (k == 1) ? MBParameterType.Compound : null);
+				param.setMElements(paramElements);
+				params[k] = param;
+			}
+			MBPrimitive prim = new MBPrimitive();
+			prim.setMName(primitiveName(j));
+			prim.setMParameters(params);
+			prims[j] = prim;
+		}
+		MBTask task = new MBTask();
+		task.setMPrimitives(prims);
+		return task;
+	}
+
+	/**
+	 * @return the import context key of an element of task(), as the transformations DCR names its runtime parameters
+	 */
+	public static String runtimeParameter(int primitive, int parameter, int element) {
+		return primitiveName(primitive) + "/" + parameterName(parameter) + "/" + elementName(element);
+	}
+
+	private static String primitiveName(int j) {
+		return "Primitive " + j;
+	}
+
+	private static String parameterName(int k) {
+		return "Parameter " + k;
+	}
+
+	private static String elementName(int l) {
+		return "Element " + l;
+	}
+
+	/**
+	 * @param id
+	 * @param name
+	 * @return an asset of the synthetic catalogue
+	 */
+	public static MBAsset asset(String id, String name) {
+		MBAsset asset = new MBAsset();
+		asset.setMID(id);
+		asset.setMName(name);
+		asset.setIsDeleted(false);
+		Calendar modified = Calendar.getInstance();
+		modified.setTimeInMillis(MODIFIED);
+		asset.setMModifiedDate(modified);
+		return asset;
+	}
+
+	/**
+	 * @param id
+	 * @return a container of the synthetic catalogue
+	 */
+	public static MBContainer container(String id) {
+		MBContainer container = new MBContainer();
+		container.setMID(id);
+		return container;
+	}
+
+	/**
+	 * @param task	the task every getTask() call returns
+	 * @return a MediaBin server serving the synthetic catalogue, without any latency
+	 */
+	public static MediaBinServerSoap server(final MBTask task) {
+		return proxy(MediaBinServerSoap.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("getTask")) {
+					return task;
+				}
+				if (name.equals("getAsset")) {
+					return asset((String) args[0], "asset.jpg");
+				}
+				if (name.equals("getAssetByName")) {
+					return asset("{" + args[0] + "}", (String) args[0]);
+				}
+				if (name.equals("getRootContainer")) {
+					return container(ROOT_CONTAINER_ID);
+				}
+				if (name.equals("getContainerByPath")) {
+					return container("{" + args[0] + "}");
+				}
+				throw new RemoteException("MediaBinServerSoap." + name + "() is not available offline");
+			}
+		});
+	}
+
+	/**
+	 * @return a request context, which the client only hands on to the path config
+	 */
+	public static RequestContext requestContext() {
+		return proxy(RequestContext.class, null);
+	}
+
+	/**
+	 * @return a locale replacing {language} with LANGUAGE
+	 */
+	public static ILocale locale() {
+		return proxy(ILocale.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("replaceLocale")) {
+					return ((String) args[0]).replace("{language}", LANGUAGE);
+				}
+				throw new UnsupportedOperationException("ILocale." + method.getName() + "() is not stubbed");
+			}
+		});
+	}
+
+	/**
+	 * @param type		the interface
+	 * @param handler	handles the calls of the interface's methods, or null to fail them
+	 * @return a proxy implementing the interface, with identity equals(), hashCode() and toString()
+	 */
+	static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(MediaBinStubs.class.getClassLoader(), new Class[] { type }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() == Object.class) {
+					if (method.getName().equals("equals")) {
+						return Boolean.valueOf(proxy == args[0]);
+					}
+					if (method.getName().equals("hashCode")) {
+						return Integer.valueOf(System.identityHashCode(proxy));
+					}
+					return "stub " + type.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+				}
+				if (handler == null) {
+					throw new UnsupportedOperationException(type.getName() + "." + method.getName() + "() is not stubbed");
+				}
+				return handler.invoke(proxy, method, args);
+			}
+		}));
+	}
+
+	/**
+	 * Resolves the import paths of every request under one directory
+	 */
+	public static class PathConfig extends MediaBinClientPathConfig {
+
+		private final File root;
+		private final String url;
+
+		/**
+		 * @param root	the import directory
+		 * @param url	the URL the import directory is served at
+		 */
+		public PathConfig(File root, String url) {
+			this.root = root;
+			this.url = url;
+		}
+
+		@Override
+		public File getFile(String relativePath) {
+			return (relativePath.length() == 0) ? root : new File(root, relativePath);
+		}
+
+		@Override
+		public String getFileURL(String relativePath) {
+			return url + relativePath;
+		}
+
+		@Override
+		public File getFile(RequestContext context, String relativePath) {
+			return getFile(relativePath);
+		}
+
+		@Override
+		public String getFileURL(RequestContext context, String relativePath) {
+			return getFileURL(relativePath);
+		}
+
+	}
+
+	/**
+	 * Reads a new copy of transformations() every time, as LiveSite would read the DCR
+	 */
+	public static class SampleTransformationsReader implements MediaBinClient.TransformationsReader {
+
+		public Document read(RequestContext context) {
+			return transformations();
+		}
+
+	}
+
+	/**
+	 * Builds stubs serving the synthetic catalogue
+	 */
+	public static class CatalogueServerFactory implements MediaBinConnectionManager.ServerFactory {
+
+		private final MBTask task;
+
+		public CatalogueServerFactory(MBTask task) {
+			this.task = task;
+		}
+
+		public MediaBinServerSoap create() {
+			return server(task);
+		}
+
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * MediaBinRefreshCache.getModifiedTime() and setModifiedTime() from many threads, over a set of assets
+ * that fits in the cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RefreshCacheBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Assets {
+
+		@Param({ "10000" })
+		public int assets;
+
+		String[] assetIds;
+
+		@Setup
+		public void setUp() {
+			assetIds = new String[assets];
+			for (int i = 0; i < assets; i++) {
+				assetIds[i] = MediaBinStubs.assetId(i);
+				MediaBinRefreshCache.setModifiedTime(assetIds[i], MediaBinStubs.MODIFIED);
+			}
+		}
+
+	}
+
+	/**
+	 * Walks the assets from a different place on each thread, so the threads do not all use the same entry
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private static AtomicInteger threads = new AtomicInteger();
+
+		private int next = threads.getAndIncrement() * 7919;
+
+		String next(Assets assets) {
+			next = (next + 31) % assets.assetIds.length;
+			return assets.assetIds[next];
+		}
+
+	}
+
+	@Benchmark
+	@Threads(16)
+	public long get(Assets assets, Cursor cursor) {
+		return MediaBinRefreshCache.getModifiedTime(cursor.next(assets));
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void set(Assets assets, Cursor cursor) {
+		MediaBinRefreshCache.setModifiedTime(cursor.next(assets), MediaBinStubs.MODIFIED);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(12)
+	public long mixedGet(Assets assets, Cursor cursor) {
+		return get(assets, cursor);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(4)
+	public void mixedSet(Assets assets, Cursor cursor) {
+		set(assets, cursor);
+	}
+
+}
@@ -0,0 +1,63 @@
+package com.eu.interflow.livesite.mediabin;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.interwoven.livesite.runtime.RequestContext;
+
+/**
+ * MediaBinClient.getTransformations() called by every render thread at once, with the DCR up to date, and 
+ * with one thread having it read again on every call while the others carry on rendering.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TransformationsBenchmark {
+
+	private RequestContext context;
+
+	@Setup
+	public void setUp() throws Exception {
+		context = MediaBinStubs.requestContext();
+		MediaBinClient.setTransformationsReader(new MediaBinStubs.SampleTransformationsReader());
+		MediaBinClient.getTransformations(context);
+	}
+
+	@TearDown
+	public void tearDown() {
+		MediaBinClient.setTransformationsReader(null);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public MediaBinTransformationIndex contended() throws Exception {
+		return MediaBinClient.getTransformations(context);
+	}
+
+	@Benchmark
+	@Group("refreshing")
+	@GroupThreads(15)
+	public MediaBinTransformationIndex render() throws Exception {
+		return MediaBinClient.getTransformations(context);
+	}
+
+	@Benchmark
+	@Group("refreshing")
+	@GroupThreads(1)
+	public MediaBinTransformationIndex refresh() throws Exception {
+		MediaBinClient.invalidateTransformations();
+		return MediaBinClient.getTransformations(context);
+	}
+
+}